@@ -0,0 +1,44 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The {@code Benchmarks} class runs the JMH benchmarks of JDrop with the GC profiler enabled, so that every result is
+ * reported together with its allocation rate ({@code gc.alloc.rate.norm} is the number of bytes allocated per
+ * operation). All JMH command line options are supported, for example
+ * <pre>
+ *     java -jar jdrop-bench/target/benchmarks.jar Loopback -p engine=NIO -rf json
+ * </pre>
+ * The benchmarks are in the package of the transport so that they can call its package-private hot paths directly.
+ */
+public class Benchmarks {
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
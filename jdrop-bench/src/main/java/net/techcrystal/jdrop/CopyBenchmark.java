@@ -0,0 +1,105 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the copy loops of the {@link Server} at different chunk sizes: the stream copy through a heap buffer
+ * that the sender falls back to (and that receiving was based on), and {@link FileChannel#transferTo} in chunks of the
+ * same size. The file is copied between two files in the page cache, so the results show the cost of the loops and
+ * system calls rather than of the disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CopyBenchmark {
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+
+    @Param({"8192", "65536", "262144", "1048576"})
+    public int chunkSize;
+
+    private File source;
+    private File target;
+    private byte[] buffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = File.createTempFile("jdrop-bench", ".src");
+        target = File.createTempFile("jdrop-bench", ".dst");
+        byte[] data = new byte[FILE_SIZE];
+        new Random(1).nextBytes(data);
+        Files.write(source.toPath(), data);
+        buffer = new byte[chunkSize];
+    }
+
+    @TearDown
+    public void tearDown() {
+        source.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public long streamCopy(Megabytes megabytes) throws IOException {
+        try (InputStream in = new FileInputStream(source); OutputStream out = new FileOutputStream(target)) {
+            long numBytes = Server.copy(in, out, buffer);
+            megabytes.add(numBytes);
+            return numBytes;
+        }
+    }
+
+    @Benchmark
+    public long transferTo(Megabytes megabytes) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += Server.transfer(in, position, Math.min(chunkSize, size - position), out);
+            }
+            megabytes.add(position);
+            return position;
+        }
+    }
+}
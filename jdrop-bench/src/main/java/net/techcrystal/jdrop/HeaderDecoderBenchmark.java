@@ -0,0 +1,93 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks decoding a "FILE" header with {@link HeaderDecoder}, both incrementally from a buffer (as the
+ * {@link NioEngine} does) and from a blocking stream (as the workers of the {@link Server} do).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderDecoderBenchmark {
+    private static final byte[] HEADER = "123456\0FILE\0holiday-photos-2017.tar.gz\04294967296\0".getBytes();
+
+    @Param({"heap", "direct"})
+    public String buffer;
+
+    private ByteBuffer bytes;
+    private ByteArrayInputStream stream;
+    private HeaderDecoder bufferDecoder;
+    private HeaderDecoder streamDecoder;
+
+    @Setup
+    public void setUp() {
+        bytes = buffer.equals("direct") ? ByteBuffer.allocateDirect(HEADER.length) : ByteBuffer.allocate(HEADER.length);
+        bytes.put(HEADER).flip();
+        stream = new ByteArrayInputStream(HEADER);
+        bufferDecoder = new HeaderDecoder();
+        streamDecoder = new HeaderDecoder(Server.DEFAULT_CHUNK);
+    }
+
+    @Benchmark
+    public void decodeBuffer(Blackhole blackhole) throws IOException {
+        bytes.rewind();
+        bufferDecoder.decode(bytes);
+        blackhole.consume(bufferDecoder.fieldEquals("123456"));
+        bufferDecoder.decode(bytes);
+        blackhole.consume(bufferDecoder.fieldEquals("FILE"));
+        bufferDecoder.decode(bytes);
+        blackhole.consume(bufferDecoder.fieldAsString());
+        bufferDecoder.decode(bytes);
+        blackhole.consume(bufferDecoder.fieldAsLong());
+    }
+
+    @Benchmark
+    public void decodeStream(Blackhole blackhole) throws IOException {
+        stream.reset();
+        streamDecoder.reset(stream);
+        streamDecoder.next();
+        blackhole.consume(streamDecoder.fieldEquals("123456"));
+        streamDecoder.next();
+        blackhole.consume(streamDecoder.fieldEquals("FILE"));
+        streamDecoder.next();
+        blackhole.consume(streamDecoder.fieldAsString());
+        streamDecoder.next();
+        blackhole.consume(streamDecoder.fieldAsLong());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks sending a file with {@link Server#sendFile(String, String, File)} into a receiving {@link Server} over
+ * the loopback interface, end to end from connecting until the received file is complete on disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+    private static final String CODE = "123456";
+    private static final String HOST = "127.0.0.1";
+
+    @Param({"BLOCKING", "NIO"})
+    public ServerConfig.Engine engine;
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    private File directory;
+    private File source;
+    private Server server;
+    private volatile CompletableFuture<Long> received;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        directory = Files.createTempDirectory("jdrop-bench").toFile();
+        source = new File(directory, "source.bin");
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        Files.write(source.toPath(), data);
+
+        File inbox = new File(directory, "inbox");
+        inbox.mkdir();
+        PrintStream quiet = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        server = new Server(new ServerConfig().setEngine(engine).setCode(CODE),
+                new DirectoryTransferListener(inbox, quiet) {
+                    @Override
+                    public void transferStarted(Transfer transfer) {
+                        transfer.getCompletion().whenComplete((numBytes, e) -> {
+                            if (e == null) {
+                                received.complete(numBytes);
+                            } else {
+                                received.completeExceptionally(e);
+                            }
+                        });
+                    }
+                }, this::onError);
+        server.start();
+        awaitListening();
+    }
+
+    private void onError(Throwable e) {
+        CompletableFuture<Long> received = this.received;
+        if (received != null) received.completeExceptionally(e);
+    }
+
+    /**
+     * Wait until the server accepts connections. The probe sends an empty code, which the server turns away without
+     * reporting an error.
+     */
+    private void awaitListening() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(HOST, Server.DEFAULT_PORT));
+                socket.getOutputStream().write(0);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start listening on port " + Server.DEFAULT_PORT);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.interrupt();
+        File[] inbox = new File(directory, "inbox").listFiles();
+        if (inbox != null) {
+            for (File file : inbox) file.delete();
+        }
+        new File(directory, "inbox").delete();
+        source.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public long sendFile(Megabytes megabytes) throws ExecutionException, InterruptedException {
+        received = new CompletableFuture<>();
+        server.sendFile(HOST, CODE, source);
+        long numBytes = received.get();
+        megabytes.add(size);
+        return numBytes;
+    }
+}
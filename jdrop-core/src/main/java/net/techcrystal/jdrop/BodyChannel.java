@@ -0,0 +1,95 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The {@code BodyChannel} class reads the payload of a connection straight from its {@link SocketChannel}, after the
+ * bytes that the {@link HeaderDecoder} read ahead together with the header. Reading into a direct buffer therefore
+ * copies the payload only once, from the kernel into the buffer. A blocking channel ignores the read timeout of its
+ * socket, so if the socket has one, the channel is switched to non-blocking mode and waits on a selector instead.
+ * Closing a {@code BodyChannel} leaves the connection open.
+ */
+class BodyChannel implements ReadableByteChannel {
+    private final HeaderDecoder header;
+    private final SocketChannel channel;
+    private final int timeout;
+    private Selector selector;
+
+    /**
+     * Instantiate a new {@code BodyChannel}.
+     * @param header the decoder positioned at the payload
+     * @param channel the channel of the connection
+     * @param timeout the read timeout in milliseconds, or 0 to wait forever
+     */
+    BodyChannel(HeaderDecoder header, SocketChannel channel, int timeout) {
+        this.header = header;
+        this.channel = channel;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Read payload bytes into a buffer, blocking until at least one byte is available.
+     * @param target the buffer to read into
+     * @return the number of bytes read, 0 only if the buffer is full, or -1 at the end of the payload
+     * @throws SocketTimeoutException if no byte arrives within the timeout
+     * @throws IOException if the channel cannot be read
+     */
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+        if (!target.hasRemaining()) return 0;
+        int buffered = header.drainBody(target);
+        if (buffered > 0) return buffered;
+        if (timeout <= 0) return channel.read(target);
+        if (selector == null) {
+            selector = Selector.open();
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+        while (true) {
+            int numBytes = channel.read(target);
+            if (numBytes != 0) return numBytes;
+            if (selector.select(timeout) == 0) throw new SocketTimeoutException("Read timed out");
+            selector.selectedKeys().clear();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Stop reading the payload and return the channel to blocking mode, so that the connection can still be used
+     * through its streams.
+     * @throws IOException if the channel cannot be switched back to blocking mode
+     */
+    @Override
+    public void close() throws IOException {
+        if (selector == null) return;
+        selector.close();
+        selector = null;
+        if (channel.isOpen()) channel.configureBlocking(true);
+    }
+}
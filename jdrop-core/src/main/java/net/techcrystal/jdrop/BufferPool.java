@@ -0,0 +1,259 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@code BufferPool} class recycles the direct {@link ByteBuffer}s that transfers read into and write from, so that
+ * socket and file I/O goes straight to native memory without allocating a new buffer (and without the extra
+ * heap-to-native copy the JDK makes for heap buffers) for every chunk. Buffers come in size classes, the powers of two
+ * from {@link #MIN_SIZE} to {@link #MAX_SIZE}. Each thread keeps a few released buffers of each class for itself, and
+ * the rest are shared between threads; the caches of threads that have ended are taken back into the shared pool
+ * when memory runs short.
+ * <p>
+ * The pool allocates at most {@code maxMemory} bytes of direct buffers. Beyond that, and for requests larger than
+ * {@link #MAX_SIZE}, it hands out heap buffers that are left to the garbage collector on release, so callers must
+ * only use the {@link ByteBuffer} API and not assume a backing array. With leak detection enabled, the pool
+ * remembers where each buffer was acquired and logs buffers that are garbage collected without having been released.
+ */
+class BufferPool {
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final Logger LOG = Logger.getGlobal();
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+    private static final int CACHE_BYTES = 1024 * 1024;
+
+    private final long maxMemory;
+    private final AtomicLong allocated;
+    private final Queue<ByteBuffer>[] shared;
+    private final ThreadLocal<Cache> caches;
+    private final Queue<Cache> allCaches;
+    private final Set<Lease> leases;
+    private final ReferenceQueue<ByteBuffer> collected;
+
+    /**
+     * Instantiate a new {@code BufferPool}.
+     * @param maxMemory the maximum number of bytes of direct buffers to allocate
+     * @param leakDetection whether to record where buffers are acquired and report those never released
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(long maxMemory, boolean leakDetection) {
+        this.maxMemory = maxMemory;
+        allocated = new AtomicLong();
+        shared = new Queue[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+        }
+        allCaches = new ConcurrentLinkedQueue<>();
+        caches = ThreadLocal.withInitial(() -> {
+            Cache cache = new Cache(Thread.currentThread());
+            allCaches.add(cache);
+            return cache;
+        });
+        leases = leakDetection ? ConcurrentHashMap.newKeySet() : null;
+        collected = leakDetection ? new ReferenceQueue<>() : null;
+    }
+
+    /**
+     * Take a cleared buffer of at least the given capacity.
+     * @param size the minimum capacity (in bytes)
+     * @return a direct buffer whose capacity is the size class of {@code size}, or a heap buffer if the pool is out
+     * of memory or the size is larger than {@link #MAX_SIZE}
+     */
+    ByteBuffer acquire(int size) {
+        if (size > MAX_SIZE) return ByteBuffer.allocate(size);
+        int index = sizeClass(size);
+        Cache cache = caches.get();
+        ByteBuffer buffer = cache.buffers[index].poll();
+        if (buffer != null) {
+            cache.bytes -= buffer.capacity();
+        } else {
+            buffer = shared[index].poll();
+        }
+        if (buffer == null) buffer = allocate(index);
+        buffer.clear();
+        if (leases != null && buffer.isDirect()) track(buffer);
+        return buffer;
+    }
+
+    /**
+     * Make sure a buffer has the size class of the given size, and replace it with one that has if not. This lets a
+     * caller follow an I/O unit that changes while it transfers.
+     * @param buffer a buffer previously obtained from {@link #acquire(int)}, or {@code null}
+     * @param size the minimum capacity (in bytes)
+     * @return the given buffer if its capacity is the size class of {@code size}, otherwise a new cleared one
+     */
+    ByteBuffer resize(ByteBuffer buffer, int size) {
+        if (buffer != null) {
+            if (buffer.capacity() == (size > MAX_SIZE ? size : MIN_SIZE << sizeClass(size))) return buffer;
+            release(buffer);
+        }
+        return acquire(size);
+    }
+
+    /**
+     * Return a buffer to the pool. The buffer must not be used by the caller afterwards.
+     * @param buffer a buffer previously obtained from {@link #acquire(int)}
+     */
+    void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) return;
+        if (leases != null && !untrack(buffer)) {
+            LOG.log(Level.WARNING, "Released a buffer that was not acquired from the pool, or released it twice",
+                    new IllegalStateException());
+            return;
+        }
+        int index = sizeClass(buffer.capacity());
+        Cache cache = caches.get();
+        if (cache.bytes + buffer.capacity() <= CACHE_BYTES) {
+            cache.buffers[index].push(buffer);
+            cache.bytes += buffer.capacity();
+        } else {
+            shared[index].offer(buffer);
+        }
+    }
+
+    /**
+     * Return the number of bytes of direct buffers allocated by the pool, both in use and idle.
+     * @return the allocated memory
+     */
+    long getAllocated() {
+        return allocated.get();
+    }
+
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, MIN_SIZE) - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    private ByteBuffer allocate(int index) {
+        int capacity = MIN_SIZE << index;
+        if (reserve(capacity)) return ByteBuffer.allocateDirect(capacity);
+        // take back what ended threads kept, and drop idle buffers of other sizes to make room
+        reclaim();
+        ByteBuffer buffer = shared[index].poll();
+        if (buffer != null) return buffer;
+        for (Queue<ByteBuffer> idle : shared) {
+            ByteBuffer dropped;
+            while ((dropped = idle.poll()) != null) {
+                allocated.addAndGet(-dropped.capacity());
+                if (reserve(capacity)) return ByteBuffer.allocateDirect(capacity);
+            }
+        }
+        LOG.log(Level.FINE, "Buffer pool is out of memory, allocating a heap buffer of " + capacity + " bytes");
+        return ByteBuffer.allocate(capacity);
+    }
+
+    private boolean reserve(int capacity) {
+        while (true) {
+            long current = allocated.get();
+            if (current + capacity > maxMemory) return false;
+            if (allocated.compareAndSet(current, current + capacity)) return true;
+        }
+    }
+
+    /**
+     * Move the buffers cached by threads that have ended into the shared pool.
+     */
+    private void reclaim() {
+        for (Iterator<Cache> it = allCaches.iterator(); it.hasNext(); ) {
+            Cache cache = it.next();
+            Thread owner = cache.owner.get();
+            if (owner != null && owner.isAlive()) continue;
+            it.remove();
+            for (int i = 0; i < CLASSES; i++) {
+                ByteBuffer buffer;
+                while ((buffer = cache.buffers[i].poll()) != null) {
+                    shared[i].offer(buffer);
+                }
+            }
+        }
+        if (leases != null) reportLeaks();
+    }
+
+    private void track(ByteBuffer buffer) {
+        reportLeaks();
+        leases.add(new Lease(buffer, collected));
+    }
+
+    private boolean untrack(ByteBuffer buffer) {
+        for (Iterator<Lease> it = leases.iterator(); it.hasNext(); ) {
+            if (it.next().get() == buffer) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void reportLeaks() {
+        Reference<? extends ByteBuffer> reference;
+        while ((reference = collected.poll()) != null) {
+            Lease lease = (Lease) reference;
+            if (leases.remove(lease)) {
+                allocated.addAndGet(-lease.capacity);
+                LOG.log(Level.WARNING, "A buffer of " + lease.capacity + " bytes was never released", lease.acquired);
+            }
+        }
+    }
+
+    /**
+     * The buffers a single thread keeps for itself. Only the owner thread touches them, until it has ended.
+     */
+    private static class Cache {
+        private final WeakReference<Thread> owner;
+        private final ArrayDeque<ByteBuffer>[] buffers;
+        private long bytes;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Cache(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+            buffers = new ArrayDeque[CLASSES];
+            for (int i = 0; i < CLASSES; i++) {
+                buffers[i] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    /**
+     * A buffer in use, with where it was acquired.
+     */
+    private static class Lease extends WeakReference<ByteBuffer> {
+        private final int capacity;
+        private final Throwable acquired;
+
+        private Lease(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            capacity = buffer.capacity();
+            acquired = new Throwable("Acquired here");
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+
+/**
+ * The {@code ChunkFrames} class frames a payload into checksummed chunks for the "crc32c" option of the transport
+ * protocol (see {@link Server}). The range of the file from the resume offset is split into chunks of
+ * {@link #CHUNK_SIZE} bytes (the last one may be shorter), numbered from 0, and each chunk is sent as
+ * <pre>{@code
+ *     [chunk bytes][CRC-32C of the chunk bytes, 4 bytes big-endian]}
+ * </pre>
+ * so that the receiver verifies every chunk as it arrives and can ask for just the corrupted chunks again.
+ */
+class ChunkFrames {
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    private ChunkFrames() {
+    }
+
+    /**
+     * Return the number of chunks of a byte range.
+     * @param offset the start of the range
+     * @param size the end of the range
+     * @return the number of chunks
+     */
+    static long count(long offset, long size) {
+        return (size - offset + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    static long start(long offset, long index) {
+        return offset + index * CHUNK_SIZE;
+    }
+
+    static int length(long offset, long size, long index) {
+        return (int) Math.min(CHUNK_SIZE, size - start(offset, index));
+    }
+
+    /**
+     * Read a chunk of a file and write it as a frame.
+     * @param in the file to read the chunk from
+     * @param out the stream to write the frame to
+     * @param start the position of the chunk in the file
+     * @param length the length of the chunk
+     * @param buffer a buffer of at least {@code length} bytes
+     * @param checksum the checksum to compute the trailer with
+     * @throws IOException if the file cannot be read or the stream cannot be written
+     */
+    static void write(FileChannel in, OutputStream out, long start, int length, byte[] buffer, Checksum checksum)
+            throws IOException {
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, length);
+        while (wrapped.hasRemaining()) {
+            if (in.read(wrapped, start + wrapped.position()) < 0) {
+                throw new EOFException("File ended before the chunk at " + start + " was read");
+            }
+        }
+        checksum.reset();
+        checksum.update(buffer, 0, length);
+        int crc = (int) checksum.getValue();
+        out.write(buffer, 0, length);
+        out.write(new byte[]{(byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc});
+    }
+
+    /**
+     * Read a frame and verify its chunk.
+     * @param in the stream to read the frame from
+     * @param buffer a buffer of at least {@code length + 4} bytes to read the frame into
+     * @param length the length of the chunk
+     * @param checksum the checksum to verify the trailer with
+     * @return {@code true} if the chunk in the buffer matches its trailer
+     * @throws IOException if the stream ends before the frame is complete
+     */
+    static boolean read(InputStream in, byte[] buffer, int length, Checksum checksum) throws IOException {
+        int frameLength = length + 4;
+        for (int position = 0; position < frameLength; ) {
+            int numBytes = in.read(buffer, position, frameLength - position);
+            if (numBytes < 0) throw new EOFException("Connection closed within a chunk");
+            position += numBytes;
+        }
+        checksum.reset();
+        checksum.update(buffer, 0, length);
+        int crc = (buffer[length] & 0xff) << 24 | (buffer[length + 1] & 0xff) << 16
+                | (buffer[length + 2] & 0xff) << 8 | buffer[length + 3] & 0xff;
+        return crc == (int) checksum.getValue();
+    }
+
+    /**
+     * Wrap a stream so that closing the wrapper (e.g. to finish a compressed stream) leaves the stream open.
+     * @param out the stream to protect
+     * @return the wrapper
+     */
+    static OutputStream shield(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * Wrap a stream so that closing the wrapper leaves the stream open.
+     * @param in the stream to protect
+     * @return the wrapper
+     */
+    static InputStream shield(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
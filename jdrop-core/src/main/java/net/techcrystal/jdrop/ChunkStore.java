@@ -0,0 +1,203 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The {@code ChunkStore} class is the content-addressed store of received {@link Chunker} chunks that lets a receiver
+ * skip the chunks of a file it has received before (see the "dedup" option of {@link Server}). Each chunk is a file
+ * named after its SHA-256 in a subdirectory named after the first two hex digits. When the chunks exceed the disk
+ * budget, the least recently used ones are deleted, except chunks that a transfer in progress has been promised.
+ * The modification time of a chunk file records its last use, so that the order survives a restart.
+ */
+class ChunkStore {
+    private static final Logger LOG = Logger.getGlobal();
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long budget;
+    private final LinkedHashMap<String, Long> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> pins = new HashMap<>();
+    private long size;
+
+    /**
+     * Open a chunk store, creating its directory if needed.
+     * @param directory the directory of the store
+     * @param budget the number of bytes the chunks may take up
+     * @throws IOException if the directory cannot be created or read
+     */
+    ChunkStore(Path directory, long budget) throws IOException {
+        this.directory = directory;
+        this.budget = budget;
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory, 2)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        Map<Path, FileTime> used = new HashMap<>();
+        for (Path file : files) {
+            if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                Files.deleteIfExists(file);
+            } else {
+                used.put(file, Files.getLastModifiedTime(file));
+            }
+        }
+        files.removeIf(file -> !used.containsKey(file));
+        files.sort(Comparator.comparing(used::get));
+        for (Path file : files) {
+            long length = Files.size(file);
+            chunks.put(file.getFileName().toString(), length);
+            size += length;
+        }
+        synchronized (this) {
+            evict();
+        }
+        LOG.log(Level.INFO, String.format("Chunk store %s holds %d chunks (%s)", directory, chunks.size(),
+                Server.humanReadableByteCount(size, false)));
+    }
+
+    /**
+     * Look up chunks and keep those that are present from being evicted until they are released.
+     * @param hashes the hashes of the chunks
+     * @return the hashes of the chunks that are present, which must be passed to {@link #release(Collection)}
+     */
+    Set<String> acquire(Collection<String> hashes) {
+        Set<String> present = new HashSet<>();
+        synchronized (this) {
+            for (String hash : hashes) {
+                if (chunks.get(hash) != null && present.add(hash)) {
+                    pins.merge(hash, 1, Integer::sum);
+                }
+            }
+        }
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (String hash : present) {
+            try {
+                Files.setLastModifiedTime(path(hash), now);
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Cannot touch chunk " + hash, e);
+            }
+        }
+        return present;
+    }
+
+    /**
+     * Allow acquired chunks to be evicted again.
+     * @param hashes the hashes returned by {@link #acquire(Collection)}
+     */
+    synchronized void release(Collection<String> hashes) {
+        for (String hash : hashes) {
+            pins.computeIfPresent(hash, (k, count) -> count > 1 ? count - 1 : null);
+        }
+        evict();
+    }
+
+    /**
+     * Copy an acquired chunk into a file.
+     * @param hash the hash of the chunk
+     * @param out the file to copy to
+     * @param position the position in the file to copy to
+     * @throws IOException if the chunk cannot be read or the file cannot be written
+     */
+    void copyTo(String hash, FileChannel out, long position) throws IOException {
+        try (FileChannel in = FileChannel.open(path(hash), StandardOpenOption.READ)) {
+            long length = in.size();
+            for (long copied = 0; copied < length; ) {
+                copied += in.transferTo(copied, length - copied, out.position(position + copied));
+            }
+        }
+    }
+
+    /**
+     * Add a chunk, unless it is already present. The caller has verified that the data matches the hash.
+     * @param hash the hash of the chunk
+     * @param data the buffer holding the chunk
+     * @param length the length of the chunk
+     * @throws IOException if the chunk cannot be written
+     */
+    void put(String hash, byte[] data, int length) throws IOException {
+        synchronized (this) {
+            if (chunks.containsKey(hash)) return;
+        }
+        Path target = path(hash);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), hash, TEMP_SUFFIX);
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer wrapped = ByteBuffer.wrap(data, 0, length);
+                while (wrapped.hasRemaining()) {
+                    out.write(wrapped);
+                }
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        synchronized (this) {
+            if (chunks.put(hash, (long) length) == null) size += length;
+            evict();
+        }
+    }
+
+    private Path path(String hash) {
+        return directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private void evict() {
+        for (Iterator<Map.Entry<String, Long>> it = chunks.entrySet().iterator(); size > budget && it.hasNext(); ) {
+            Map.Entry<String, Long> chunk = it.next();
+            if (pins.containsKey(chunk.getKey())) continue;
+            try {
+                Files.deleteIfExists(path(chunk.getKey()));
+            } catch (NoSuchFileException ignored) {
+                // deleted by hand
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Cannot evict chunk " + chunk.getKey(), e);
+                continue;
+            }
+            it.remove();
+            size -= chunk.getValue();
+        }
+    }
+}
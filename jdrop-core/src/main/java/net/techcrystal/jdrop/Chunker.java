@@ -0,0 +1,129 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The {@code Chunker} class splits files into content-defined chunks for the "dedup" option of the transport protocol
+ * (see {@link Server}). Chunk boundaries are found with a Gear rolling hash over the last 64 bytes, so that an
+ * insertion or deletion only changes the chunks around it and the rest of a modified file still matches the chunks
+ * a receiver already has. Chunks are between {@link #MIN_CHUNK} and {@link #MAX_CHUNK} bytes long, about
+ * {@link #MIN_CHUNK} + 256 KiB on average, and are identified by their SHA-256.
+ */
+class Chunker {
+    public static final int MIN_CHUNK = 64 * 1024;
+    public static final int MAX_CHUNK = 1024 * 1024;
+
+    // boundary when the top 18 bits of the hash are zero, i.e. once every 256 KiB on average
+    private static final long BOUNDARY_MASK = 0xFFFFC00000000000L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // the table must be the same everywhere, or the same content would be chunked differently
+        Random random = new Random(0x4A44726F70L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * A chunk of a file.
+     */
+    static class Chunk {
+        final long offset;
+        final int length;
+        final String hash;
+
+        Chunk(long offset, int length, String hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    private Chunker() {
+    }
+
+    /**
+     * Split a byte range of a file into chunks.
+     * @param in the file to split
+     * @param offset the start of the range
+     * @param size the end of the range
+     * @return the chunks, in file order
+     * @throws IOException if the file cannot be read
+     */
+    static List<Chunk> split(FileChannel in, long offset, long size) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(Server.RECEIVE_CHUNK);
+        byte[] array = buffer.array();
+        long start = offset;
+        long position = offset;
+        long hash = 0;
+        while (position < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - position));
+            int numBytes = in.read(buffer, position);
+            if (numBytes < 0) throw new EOFException("File ended at " + position + " of " + size + " bytes");
+            int hashed = 0;
+            for (int i = 0; i < numBytes; i++) {
+                hash = (hash << 1) + GEAR[array[i] & 0xff];
+                long length = position + i + 1 - start;
+                if (length >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0 || length == MAX_CHUNK) {
+                    digest.update(array, hashed, i + 1 - hashed);
+                    chunks.add(new Chunk(start, (int) length, hex(digest.digest())));
+                    hashed = i + 1;
+                    start = position + i + 1;
+                    hash = 0;
+                }
+            }
+            digest.update(array, hashed, numBytes - hashed);
+            position += numBytes;
+        }
+        if (start < size) {
+            chunks.add(new Chunk(start, (int) (size - start), hex(digest.digest())));
+        }
+        return chunks;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@code Cli} class is the headless entry point of JDrop. It never touches JavaFX, so it starts quickly and runs
+ * on machines without a display:
+ * <pre>
+ *     jdrop receive [directory]            receive files into a directory (default: current directory) until killed
+ *     jdrop send host code file...         send files and directories (several are sent as one batch)
+ *     jdrop text host code text            send a text
+ * </pre>
+ * Settings are taken from the {@code jdrop.*} system properties (see {@link ServerConfig}); a receive daemon usually
+ * sets a fixed code with {@code -Djdrop.code=...}.
+ */
+public class Cli {
+    private static final Logger LOG = Logger.getGlobal();
+    private static final long PROGRESS_INTERVAL = 250;
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length == 0) usage();
+        switch (args[0]) {
+            case "receive":
+                if (args.length > 2) usage();
+                receive(new File(args.length == 2 ? args[1] : "."));
+                break;
+            case "send":
+                if (args.length < 4) usage();
+                send(args);
+                break;
+            case "text":
+                if (args.length != 4) usage();
+                text(args[1], args[2], args[3]);
+                break;
+            default:
+                usage();
+        }
+    }
+
+    private static void receive(File directory) throws InterruptedException {
+        if (!directory.isDirectory()) {
+            System.err.println("Not a directory: " + directory);
+            System.exit(1);
+        }
+        Server server = new Server(new ServerConfig(), new DirectoryTransferListener(directory, System.out),
+                e -> LOG.log(Level.SEVERE, "Server error occurred", e));
+        server.start();
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.interrupt();
+            stopped.countDown();
+        }));
+        stopped.await();
+    }
+
+    private static void send(String[] args) {
+        AtomicBoolean failed = new AtomicBoolean();
+        Server server = sender(failed);
+        List<File> files = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            File file = new File(args[i]);
+            if (!file.exists()) {
+                System.err.println("No such file or directory: " + file);
+                failed.set(true);
+                continue;
+            }
+            files.add(file);
+        }
+        server.sendFiles(args[1], args[2], files);
+        server.interrupt();
+        System.exit(failed.get() ? 1 : 0);
+    }
+
+    private static void text(String host, String code, String text) {
+        AtomicBoolean failed = new AtomicBoolean();
+        Server server = sender(failed);
+        server.sendText(host, code, text);
+        server.interrupt();
+        System.exit(failed.get() ? 1 : 0);
+    }
+
+    /**
+     * Create a server that is only used to send. It is never started, so its transfer listener only hears about the
+     * code, which is of no interest to a sender, and about outgoing transfers, whose progress is shown on a single
+     * line if the standard error stream is a terminal.
+     * @param failed set if an error occurs
+     * @return the server
+     */
+    private static Server sender(AtomicBoolean failed) {
+        return new Server(new ServerConfig(), new DirectoryTransferListener(new File("."), System.out) {
+            @Override
+            public void codeChanged(String code) {
+            }
+
+            @Override
+            public void sendStarted(Transfer transfer) {
+                if (System.console() == null) return;
+                new ProgressReporter(transfer, PROGRESS_INTERVAL, sample -> System.err.print(String.format("\r%-60s%s",
+                        transfer.getFile().getName() + ": " + sample, sample.isDone() ? "\n" : "")));
+            }
+        }, e -> {
+            LOG.log(Level.SEVERE, "Send failed", e);
+            failed.set(true);
+        });
+    }
+
+    private static void usage() {
+        System.err.println("Usage: jdrop receive [directory]");
+        System.err.println("       jdrop send <host> <code> <file or directory>...");
+        System.err.println("       jdrop text <host> <code> <text>");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The {@code Codec} interface is a compression format that the payload of a transfer can be sent in. Codecs are
+ * negotiated by name per transfer (see {@link Server}), so both ends must have the codec registered with
+ * {@link Codecs}. Besides the built-in "deflate" codec, further codecs (e.g. a faster LZ-family codec) can be plugged
+ * in by registering them or by listing them as a {@link java.util.ServiceLoader} service.
+ */
+public interface Codec {
+    /**
+     * Return the name the codec is negotiated by. It must not contain commas or null characters.
+     * @return the name of the codec
+     */
+    String getName();
+
+    /**
+     * Wrap a stream so that the bytes written to it are compressed. Closing the returned stream must finish the
+     * compressed stream, release any native resources and close the underlying stream.
+     * @param out the stream to write the compressed bytes to
+     * @return the compressing stream
+     * @throws IOException if the stream cannot be created
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Wrap a stream so that the bytes read from it are decompressed. Closing the returned stream must release any
+     * native resources and close the underlying stream.
+     * @param in the stream to read the compressed bytes from
+     * @return the decompressing stream
+     * @throws IOException if the stream cannot be created
+     */
+    InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@code Codecs} class is the registry of the {@link Codec}s available for negotiation. It holds the built-in
+ * "deflate" codec and every codec provided through {@link ServiceLoader}, and decides whether a file is worth
+ * compressing at all.
+ */
+public final class Codecs {
+    public static final int SAMPLES = 8;
+    public static final int SAMPLE_SIZE = 16 * 1024;
+    public static final double MAX_ENTROPY = 7.5;
+
+    private static final Map<String, Codec> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCodec());
+        for (Codec codec : ServiceLoader.load(Codec.class)) {
+            register(codec);
+        }
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * Make a codec available for negotiation, replacing any codec of the same name.
+     * @param codec the codec
+     */
+    public static void register(Codec codec) {
+        String name = codec.getName();
+        if (name.isEmpty() || name.indexOf(',') >= 0 || name.indexOf('\0') >= 0 || name.equals(TransferOptions.RESUME)
+                || name.equals(TransferOptions.CRC32C) || name.equals(TransferOptions.DEDUP)
+                || name.equals(TransferOptions.DELTA)) {
+            throw new IllegalArgumentException("Invalid codec name: " + name);
+        }
+        CODECS.put(name, codec);
+    }
+
+    /**
+     * Return the codec of the given name.
+     * @param name the name of the codec
+     * @return the codec, or {@code null} if no codec of this name is registered
+     */
+    public static Codec get(String name) {
+        return CODECS.get(name);
+    }
+
+    /**
+     * Estimate whether a byte range of a file compresses well. {@link #SAMPLES} blocks spread evenly over the range
+     * are read, and the Shannon entropy of their byte frequencies is computed. Already compressed content (archives,
+     * media, encrypted data) is close to 8 bits per byte; anything above {@link #MAX_ENTROPY} is not worth compressing.
+     * @param file the file to sample
+     * @param offset the start of the range
+     * @param size the end of the range
+     * @return {@code true} if the range is likely to compress
+     * @throws IOException if the file cannot be read
+     */
+    static boolean looksCompressible(FileChannel file, long offset, long size) throws IOException {
+        long[] counts = new long[256];
+        long total = 0;
+        ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+        long stride = Math.max(SAMPLE_SIZE, (size - offset) / SAMPLES);
+        for (long position = offset; position < size && total < (long) SAMPLES * SAMPLE_SIZE; position += stride) {
+            sample.clear();
+            int numBytes = file.read(sample, position);
+            if (numBytes <= 0) break;
+            for (int i = 0; i < numBytes; i++) {
+                counts[sample.get(i) & 0xff]++;
+            }
+            total += numBytes;
+        }
+        if (total == 0) return false;
+        double entropy = 0;
+        for (long count : counts) {
+            if (count == 0) continue;
+            double p = (double) count / total;
+            entropy -= p * Math.log(p) / Math.log(2);
+        }
+        return entropy <= MAX_ENTROPY;
+    }
+}
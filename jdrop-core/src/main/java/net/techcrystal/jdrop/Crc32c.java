@@ -0,0 +1,90 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+
+/**
+ * The {@code Crc32c} class computes CRC-32C (Castagnoli) checksums. {@link #create()} returns the JDK's
+ * {@code java.util.zip.CRC32C} when running on Java 9 or later, where it is a hardware-accelerated intrinsic, and
+ * falls back to this table-driven implementation on Java 8. Both produce the same checksums, so peers on different
+ * JDKs interoperate.
+ */
+final class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[] TABLE = new int[256];
+    private static final Constructor<? extends Checksum> INTRINSIC;
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+        Constructor<? extends Checksum> intrinsic;
+        try {
+            intrinsic = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+        } catch (ReflectiveOperationException e) {
+            intrinsic = null;
+        }
+        INTRINSIC = intrinsic;
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    /**
+     * Create a CRC-32C checksum, using the JDK's implementation if available.
+     * @return a new checksum
+     */
+    static Checksum create() {
+        if (INTRINSIC != null) {
+            try {
+                return INTRINSIC.newInstance();
+            } catch (ReflectiveOperationException e) {
+                Server.LOG.warning("Falling back to the table-driven CRC-32C: " + e);
+            }
+        }
+        return new Crc32c();
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int crc = this.crc;
+        for (int i = off; i < off + len; i++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b[i]) & 0xff];
+        }
+        this.crc = crc;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code Delta} class implements the rsync algorithm for the "delta" option of the transport protocol (see
+ * {@link Server}). The receiver splits the file it already has (the basis) into blocks and sends a signature of each,
+ * made of a rolling checksum and an MD5:
+ * <pre>{@code
+ *     [block size]\0[basis size]\0[8 hex digits of the rolling checksum + 32 hex digits of the MD5]\0...}
+ * </pre>
+ * The sender slides a window of one block over its file and, wherever the rolling checksum and then the MD5 of the
+ * window match a block of the basis (or, at the end of the file, the shorter last block of the basis), sends a copy
+ * instruction instead of the data:
+ * <pre>{@code
+ *     'L' [int length] [bytes]      literal data
+ *     'C' [int block] [int count]   copy count consecutive blocks of the basis
+ *     'E' [16 bytes]                end, followed by the MD5 of the whole file}
+ * </pre>
+ */
+class Delta {
+    public static final byte LITERAL = 'L';
+    public static final byte COPY = 'C';
+    public static final byte END = 'E';
+    public static final int MIN_BLOCK = 2048;
+    public static final int MAX_BLOCK = 128 * 1024;
+    public static final int MAX_LITERAL = 256 * 1024;
+    public static final String REBUILT_SUFFIX = ".jdrop-delta";
+
+    /**
+     * The block signatures of a basis file.
+     */
+    static class Signatures {
+        final int blockSize;
+        final long basisSize;
+        final Map<Integer, List<Integer>> blocks = new HashMap<>();
+        final List<byte[]> strong = new ArrayList<>();
+
+        Signatures(int blockSize, long basisSize) {
+            this.blockSize = blockSize;
+            this.basisSize = basisSize;
+        }
+
+        int lastLength() {
+            return (int) (basisSize - (long) (strong.size() - 1) * blockSize);
+        }
+    }
+
+    private Delta() {
+    }
+
+    /**
+     * Return where the receiver rebuilds the new version of a file, next to the file itself, which stays in place as
+     * the basis until the new version is complete and verified.
+     * @param file the destination of the transfer
+     * @return the path of the new version
+     */
+    static Path rebuilt(File file) {
+        return file.toPath().resolveSibling(file.getName() + REBUILT_SUFFIX);
+    }
+
+    /**
+     * Return the block size for a basis file, about the square root of its size as in rsync.
+     * @param size the size of the basis file
+     * @return the block size
+     */
+    static int blockSize(long size) {
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, (long) Math.sqrt(size) & ~1023L));
+    }
+
+    /**
+     * Compute the rolling checksum of a block.
+     * @param buffer the buffer holding the block
+     * @param offset the start of the block in the buffer
+     * @param length the length of the block
+     * @return the checksum
+     */
+    static int checksum(byte[] buffer, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = offset; i < offset + length; i++) {
+            // b sums the running sums, i.e. weighs each byte by its distance from the end of the block
+            a += buffer[i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Write the signatures of a basis file.
+     * @param basis the basis file
+     * @param out the stream to write the signatures to
+     * @throws IOException if the basis cannot be read or the stream cannot be written
+     */
+    static void writeSignatures(FileChannel basis, OutputStream out) throws IOException {
+        long size = basis.size();
+        int blockSize = blockSize(size);
+        MessageDigest md5 = md5();
+        byte[] buffer = new byte[blockSize];
+        byte[] checksum = new byte[4];
+        StringBuilder signatures = new StringBuilder().append(blockSize).append('\0').append(size).append('\0');
+        for (long position = 0; position < size; position += blockSize) {
+            int length = (int) Math.min(blockSize, size - position);
+            readFully(basis, position, buffer, length);
+            md5.update(buffer, 0, length);
+            int rolling = checksum(buffer, 0, length);
+            for (int i = 0; i < checksum.length; i++) {
+                checksum[i] = (byte) (rolling >>> (24 - 8 * i));
+            }
+            signatures.append(Chunker.hex(checksum)).append(Chunker.hex(md5.digest())).append('\0');
+            if (signatures.length() >= Server.RECEIVE_CHUNK) {
+                out.write(signatures.toString().getBytes());
+                signatures.setLength(0);
+            }
+        }
+        out.write(signatures.toString().getBytes());
+        out.flush();
+    }
+
+    /**
+     * Read the signatures of the receiver's basis file.
+     * @param reply the decoder of the receiver's answer
+     * @return the signatures
+     * @throws IOException if the signatures cannot be read or are malformed
+     */
+    static Signatures readSignatures(HeaderDecoder reply) throws IOException {
+        reply.next();
+        long blockSize = reply.fieldAsLong();
+        if (blockSize < MIN_BLOCK || blockSize > MAX_BLOCK) {
+            throw new ProtocolException("Invalid block size " + blockSize);
+        }
+        reply.next();
+        Signatures signatures = new Signatures((int) blockSize, reply.fieldAsLong());
+        long count = (signatures.basisSize + blockSize - 1) / blockSize;
+        for (int i = 0; i < count; i++) {
+            reply.next();
+            String field = reply.fieldAsString();
+            if (field.length() != 40) throw new ProtocolException("Invalid block signature " + field);
+            int checksum = (int) Long.parseLong(field.substring(0, 8), 16);
+            byte[] strong = new byte[16];
+            for (int j = 0; j < strong.length; j++) {
+                strong[j] = (byte) Integer.parseInt(field.substring(8 + 2 * j, 10 + 2 * j), 16);
+            }
+            signatures.blocks.computeIfAbsent(checksum, k -> new ArrayList<>(1)).add(i);
+            signatures.strong.add(strong);
+        }
+        return signatures;
+    }
+
+    /**
+     * Encode a file as instructions against the receiver's basis.
+     * @param in the file to be sent
+     * @param size the size (in bytes) of the file
+     * @param signatures the signatures of the basis
+     * @param out the stream to write the instructions to
+     * @param progress the transfer to report the bytes of the file encoded so far to, and to throttle the literals by
+     * @return the number of literal bytes
+     * @throws IOException if the file cannot be read or the stream cannot be written
+     */
+    static long encode(FileChannel in, long size, Signatures signatures, DataOutputStream out, Transfer progress)
+            throws IOException {
+        return new Encoder(in, size, signatures, out, progress).encode();
+    }
+
+    /**
+     * The state of encoding one file. The buffer holds the file from the first byte that has not been sent yet up to
+     * the end of the current window.
+     */
+    private static class Encoder {
+        private final FileChannel in;
+        private final long size;
+        private final Signatures signatures;
+        private final DataOutputStream out;
+        private final Transfer progress;
+        private final int blockSize;
+        private final MessageDigest strong = md5();
+        private final MessageDigest whole = md5();
+        private final byte[] buffer;
+        private long bufferStart;
+        private int bufferLength;
+        private long literalStart;
+        private long literals;
+        private int copyBlock = -1;
+        private int copyCount;
+
+        Encoder(FileChannel in, long size, Signatures signatures, DataOutputStream out, Transfer progress) {
+            this.in = in;
+            this.size = size;
+            this.signatures = signatures;
+            this.out = out;
+            this.progress = progress;
+            this.blockSize = signatures.blockSize;
+            this.buffer = new byte[MAX_LITERAL + 2 * blockSize];
+        }
+
+        long encode() throws IOException {
+            long window = 0;
+            int checksum = 0;
+            boolean fresh = true;
+            while (window + blockSize <= size) {
+                if (fresh) {
+                    fill(window + blockSize);
+                    checksum = checksum(buffer, index(window), blockSize);
+                    fresh = false;
+                }
+                int block = match(checksum, window);
+                if (block >= 0) {
+                    flushLiteral(window);
+                    whole.update(buffer, index(window), blockSize);
+                    copy(block);
+                    window += blockSize;
+                    literalStart = window;
+                    fresh = true;
+                    continue;
+                }
+                if (window - literalStart >= MAX_LITERAL) flushLiteral(window);
+                if (window + blockSize == size) break;
+                fill(window + blockSize + 1);
+                int removed = buffer[index(window)] & 0xff;
+                int added = buffer[index(window + blockSize)] & 0xff;
+                int a = (checksum - removed + added) & 0xffff;
+                int b = ((checksum >>> 16) - blockSize * removed + a) & 0xffff;
+                checksum = a | (b << 16);
+                window++;
+            }
+            fill(size);
+            matchLast();
+            flushLiteral(size);
+            flushCopy();
+            out.writeByte(END);
+            out.write(whole.digest());
+            return literals;
+        }
+
+        private int match(int checksum, long window) {
+            List<Integer> candidates = signatures.blocks.get(checksum);
+            if (candidates == null) return -1;
+            strong.update(buffer, index(window), blockSize);
+            byte[] digest = strong.digest();
+            // prefer the block that continues the current copy, so that runs coalesce into one instruction
+            int next = copyBlock + copyCount;
+            if (copyBlock >= 0 && candidates.contains(next)
+                    && MessageDigest.isEqual(digest, signatures.strong.get(next))) {
+                return next;
+            }
+            for (int block : candidates) {
+                if (MessageDigest.isEqual(digest, signatures.strong.get(block))) return block;
+            }
+            return -1;
+        }
+
+        /**
+         * Send the end of the file as a copy if it matches the last block of the basis, which is shorter than the
+         * window and therefore never matched by it.
+         */
+        private void matchLast() throws IOException {
+            int length = signatures.lastLength();
+            long start = size - length;
+            if (signatures.strong.isEmpty() || length == blockSize || start < literalStart) return;
+            int block = signatures.strong.size() - 1;
+            if (!signatures.blocks.getOrDefault(checksum(buffer, index(start), length), Collections.emptyList())
+                    .contains(block)) {
+                return;
+            }
+            strong.update(buffer, index(start), length);
+            if (!MessageDigest.isEqual(strong.digest(), signatures.strong.get(block))) return;
+            flushLiteral(start);
+            whole.update(buffer, index(start), length);
+            copy(block);
+            literalStart = size;
+        }
+
+        private void copy(int block) throws IOException {
+            if (copyBlock >= 0 && block == copyBlock + copyCount) {
+                copyCount++;
+            } else {
+                flushCopy();
+                copyBlock = block;
+                copyCount = 1;
+            }
+        }
+
+        private void flushLiteral(long end) throws IOException {
+            int length = (int) (end - literalStart);
+            if (length == 0) return;
+            flushCopy();
+            out.writeByte(LITERAL);
+            out.writeInt(length);
+            out.write(buffer, index(literalStart), length);
+            whole.update(buffer, index(literalStart), length);
+            literals += length;
+            literalStart = end;
+            progress.throttle(length);
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyBlock < 0) return;
+            out.writeByte(COPY);
+            out.writeInt(copyBlock);
+            out.writeInt(copyCount);
+            copyBlock = -1;
+        }
+
+        private int index(long position) {
+            return (int) (position - bufferStart);
+        }
+
+        /**
+         * Make sure the buffer holds the file up to the given position, dropping what has been sent.
+         */
+        private void fill(long end) throws IOException {
+            if (end <= bufferStart + bufferLength) return;
+            int keep = (int) (bufferStart + bufferLength - literalStart);
+            System.arraycopy(buffer, index(literalStart), buffer, 0, keep);
+            bufferStart = literalStart;
+            bufferLength = keep;
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer, bufferLength, buffer.length - bufferLength);
+            while (bufferStart + bufferLength < end) {
+                wrapped.limit((int) Math.min(buffer.length, size - bufferStart));
+                int numBytes = in.read(wrapped, bufferStart + bufferLength);
+                if (numBytes < 0) throw new EOFException("File ended at " + (bufferStart + bufferLength));
+                bufferLength += numBytes;
+                progress.addProgress(numBytes);
+            }
+        }
+    }
+
+    static void readFully(FileChannel in, long position, byte[] buffer, int length) throws IOException {
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, length);
+        while (wrapped.hasRemaining()) {
+            if (in.read(wrapped, position + wrapped.position()) < 0) {
+                throw new EOFException("File ended at " + (position + wrapped.position()));
+            }
+        }
+    }
+
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@code DirectoryTransferListener} class is a headless {@link TransferListener} that accepts every incoming file
+ * and saves it under its announced name in a fixed directory. Received texts and code changes are printed.
+ */
+public class DirectoryTransferListener implements TransferListener {
+    private static final Logger LOG = Logger.getGlobal();
+
+    private final File directory;
+    private final PrintStream out;
+
+    /**
+     * Instantiate a new {@code DirectoryTransferListener}.
+     * @param directory the directory to save incoming files to
+     * @param out the stream to print received texts and codes to
+     */
+    public DirectoryTransferListener(File directory, PrintStream out) {
+        this.directory = directory;
+        this.out = out;
+    }
+
+    /**
+     * Accept the file into the directory. Only the last path element of the announced name is used, so that a sender
+     * cannot write outside of the directory.
+     * @param filename the name of the incoming file as announced by the sender
+     * @param size the size (in bytes) of the incoming file
+     * @return a completed future with the destination, or {@code null} if the name is not a valid file name
+     */
+    @Override
+    public CompletableFuture<File> chooseDestination(String filename, long size) {
+        String name = new File(filename).getName();
+        if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+            LOG.log(Level.WARNING, "Rejecting file with invalid name: " + filename);
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.completedFuture(new File(directory, name));
+    }
+
+    @Override
+    public void transferStarted(Transfer transfer) {
+        LOG.log(Level.INFO, String.format("Receiving %s (%s)", transfer.getFile().getAbsolutePath(),
+                Server.humanReadableByteCount(transfer.getSize(), false)));
+        transfer.getCompletion().thenRun(() -> out.println(String.format("Received %s in %.3f seconds",
+                transfer.getFile().getAbsolutePath(), transfer.getElapsedNanos() / 1e9)));
+    }
+
+    @Override
+    public void textReceived(String text) {
+        out.println(text);
+    }
+
+    @Override
+    public void codeChanged(String code) {
+        out.println("Code: " + code);
+    }
+}
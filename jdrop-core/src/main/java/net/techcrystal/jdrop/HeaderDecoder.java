@@ -0,0 +1,230 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The {@code HeaderDecoder} class decodes the null-terminated header fields of the transport protocol (see
+ * {@link Server}). It scans whole buffers for the terminator instead of reading one byte at a time, and keeps the
+ * current field in a reusable array so that comparing or parsing a field does not allocate. Fields can be decoded in
+ * two ways:
+ * <ul>
+ *     <li>incrementally from a {@link ByteBuffer} with {@link #decode(ByteBuffer)}, for non-blocking channels</li>
+ *     <li>from a blocking {@link InputStream} with {@link #next()}, which reads the stream in large blocks; payload
+ *     bytes that were read together with the header are handed to the body reader through {@link #body()}</li>
+ * </ul>
+ * A decoder is not thread-safe, but can be reused for another stream after {@link #reset(InputStream)}.
+ */
+class HeaderDecoder {
+    public static final int MAX_FIELD = 4096;
+
+    private final byte[] field;
+    private int length;
+    private boolean complete;
+    private ByteBuffer buffer;
+    private InputStream in;
+
+    /**
+     * Instantiate a new {@code HeaderDecoder} for incremental decoding with {@link #decode(ByteBuffer)}.
+     */
+    HeaderDecoder() {
+        field = new byte[MAX_FIELD];
+    }
+
+    /**
+     * Instantiate a new {@code HeaderDecoder} that reads from a blocking stream.
+     * @param bufferSize the size of the read buffer
+     */
+    HeaderDecoder(int bufferSize) {
+        this();
+        buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Prepare the decoder to decode the header of another stream. Any state of the previous stream is discarded.
+     * @param in the stream to read the header from
+     * @return the {@code HeaderDecoder} instance
+     */
+    HeaderDecoder reset(InputStream in) {
+        this.in = in;
+        buffer.clear();
+        buffer.limit(0);
+        length = 0;
+        complete = false;
+        return this;
+    }
+
+    /**
+     * Prepare the decoder to decode the header of another stream, of which some bytes have already been read.
+     * @param in the stream to read the rest of the header from
+     * @param readAhead the bytes already read from the start of the stream
+     * @return the {@code HeaderDecoder} instance
+     */
+    HeaderDecoder reset(InputStream in, byte[] readAhead) {
+        reset(in);
+        if (readAhead.length > buffer.capacity()) {
+            buffer = ByteBuffer.allocate(readAhead.length);
+        }
+        buffer.clear();
+        buffer.put(readAhead);
+        buffer.flip();
+        return this;
+    }
+
+    /**
+     * Consume bytes from the buffer up to and including the next null terminator. If the buffer ends before the
+     * terminator, the bytes consumed so far are kept and decoding continues with the next call.
+     * @param buffer the buffer to decode from, in read mode
+     * @return {@code true} if a complete field is now available
+     * @throws ProtocolException if the field is longer than {@link #MAX_FIELD} bytes
+     */
+    boolean decode(ByteBuffer buffer) throws ProtocolException {
+        if (complete) {
+            length = 0;
+            complete = false;
+        }
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int end = start;
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            while (end < limit && array[offset + end] != 0) end++;
+        } else {
+            while (end < limit && buffer.get(end) != 0) end++;
+        }
+        int numBytes = end - start;
+        if (length + numBytes > field.length) {
+            throw new ProtocolException("Header field exceeds " + field.length + " bytes");
+        }
+        buffer.get(field, length, numBytes);
+        length += numBytes;
+        if (end == limit) return false;
+        buffer.get();
+        complete = true;
+        return true;
+    }
+
+    /**
+     * Read the next field from the stream, blocking until it is complete.
+     * @throws EOFException if the stream ends before the field is complete
+     * @throws IOException if the stream cannot be read or the field is too long
+     */
+    void next() throws IOException {
+        while (!decode(buffer)) {
+            buffer.clear();
+            int numBytes = in.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+            if (numBytes < 0) {
+                buffer.limit(0);
+                throw new EOFException("Connection closed while reading header");
+            }
+            buffer.limit(numBytes);
+        }
+    }
+
+    /**
+     * Return a stream of the payload following the header. It first yields the bytes that were read ahead together
+     * with the header and then continues with the underlying stream.
+     * @return the payload stream
+     */
+    InputStream body() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return buffer.hasRemaining() ? buffer.get() & 0xff : in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (!buffer.hasRemaining()) return in.read(b, off, len);
+                int numBytes = Math.min(len, buffer.remaining());
+                buffer.get(b, off, numBytes);
+                return numBytes;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return buffer.remaining() + in.available();
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * Move payload bytes that were read ahead together with the header into a buffer, so that the rest of the payload
+     * can be read from the underlying channel directly instead of through {@link #body()}.
+     * @param target the buffer to move the bytes into
+     * @return the number of bytes moved
+     */
+    int drainBody(ByteBuffer target) {
+        int numBytes = Math.min(buffer.remaining(), target.remaining());
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + numBytes);
+        target.put(buffer);
+        buffer.limit(limit);
+        return numBytes;
+    }
+
+    /**
+     * Compare the current field with an ASCII string without allocating.
+     * @param value the string to compare with
+     * @return {@code true} if the field consists of exactly the characters of {@code value}
+     */
+    boolean fieldEquals(String value) {
+        if (value == null || value.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (field[i] != (byte) value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse the current field as a non-negative decimal number without allocating.
+     * @return the value of the field
+     * @throws ProtocolException if the field is not a valid non-negative number
+     */
+    long fieldAsLong() throws ProtocolException {
+        if (length == 0) throw new ProtocolException("Empty numeric header field");
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = field[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw new ProtocolException("Invalid numeric header field: " + fieldAsString());
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Return the current field as a string in the platform's default charset, which is the charset the sender encodes
+     * the header with.
+     * @return the field
+     */
+    String fieldAsString() {
+        return new String(field, 0, length);
+    }
+}
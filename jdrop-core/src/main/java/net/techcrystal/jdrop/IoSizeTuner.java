@@ -0,0 +1,126 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code IoSizeTuner} class adapts the I/O unit of a transfer, the number of bytes each read or write asks for,
+ * while the transfer runs. Larger units mean fewer system calls, but also longer calls, coarser progress and a later
+ * reaction to cancellation. The tuner measures the throughput and the average latency of the calls over windows of
+ * about 100 ms and climbs the throughput: it doubles or halves the unit, keeps going in the same direction as long as
+ * each step raises the throughput by at least 10%, and undoes a step that lowered it by as much. Once settled, it
+ * probes a larger and a smaller unit in turn every few windows, and right away when the throughput drops, so that it
+ * follows a link or disk that changes speed. A unit whose calls take longer than 50 ms on average is halved at once.
+ */
+class IoSizeTuner {
+    public static final int INITIAL_SIZE = 256 * 1024;
+
+    private static final long WINDOW = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIN_CALLS = 4;
+    private static final long MAX_LATENCY = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final double MIN_GAIN = 1.1;
+    private static final int PROBE_WINDOWS = 10;
+
+    private final int minSize;
+    private final int maxSize;
+    private volatile int size;
+    private long windowStart;
+    private long windowBytes;
+    private long windowNanos;
+    private int windowCalls;
+    private double previous;
+    private int step;
+    private int direction = 1;
+    private int settledWindows = PROBE_WINDOWS;
+
+    /**
+     * Instantiate a new {@code IoSizeTuner}, starting at {@link #INITIAL_SIZE} or the nearest bound.
+     * @param minSize the smallest unit (in bytes)
+     * @param maxSize the largest unit (in bytes)
+     */
+    IoSizeTuner(int minSize, int maxSize) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        size = Math.max(minSize, Math.min(maxSize, INITIAL_SIZE));
+        windowStart = System.nanoTime();
+    }
+
+    /**
+     * Return the current I/O unit.
+     * @return the number of bytes to read or write at once
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Record a call (or the calls) that moved one unit of the transfer.
+     * @param numBytes the number of bytes moved
+     * @param nanos how long the calls took, not counting waits for a rate limit
+     */
+    synchronized void record(long numBytes, long nanos) {
+        windowBytes += numBytes;
+        windowNanos += nanos;
+        windowCalls++;
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW || windowCalls < MIN_CALLS) return;
+        adjust(windowBytes * 1e9 / elapsed, windowNanos / windowCalls);
+        windowStart = now;
+        windowBytes = 0;
+        windowNanos = 0;
+        windowCalls = 0;
+    }
+
+    private void adjust(double throughput, long latency) {
+        if (latency > MAX_LATENCY) {
+            previous = throughput;
+            resize(-1);
+            step = 0;
+            return;
+        }
+        if (step != 0) {
+            if (throughput >= previous * MIN_GAIN) {
+                previous = throughput;
+                resize(step);
+            } else if (throughput * MIN_GAIN <= previous) {
+                // keep the throughput from before the step, which the restored unit should reach again
+                resize(-step);
+                step = 0;
+            } else {
+                previous = throughput;
+                step = 0;
+            }
+            return;
+        }
+        if (++settledWindows >= PROBE_WINDOWS || throughput * MIN_GAIN <= previous) {
+            settledWindows = 0;
+            previous = throughput;
+            resize(direction);
+            direction = -direction;
+            return;
+        }
+        previous = throughput;
+    }
+
+    private void resize(int direction) {
+        int next = (int) Math.max(minSize, Math.min(maxSize, direction > 0 ? size * 2L : size / 2));
+        step = next == size ? 0 : direction;
+        size = next;
+    }
+}
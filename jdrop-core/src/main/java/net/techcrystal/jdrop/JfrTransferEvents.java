@@ -0,0 +1,212 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The Java Flight Recorder events of JDrop, see {@link TransferEvents}. This class must only be used if the runtime
+ * has JFR. The fields of an event are only filled in if the event is being recorded.
+ */
+final class JfrTransferEvents {
+    /**
+     * One in this many chunk writes is recorded.
+     */
+    static final int CHUNK_SAMPLE = 64;
+    /**
+     * Chunk writes that take at least this long are always recorded.
+     */
+    static final long SLOW_WRITE = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private JfrTransferEvents() {
+    }
+
+    @Name("net.techcrystal.jdrop.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category("JDrop")
+    @StackTrace(false)
+    static class ConnectionAccepted extends Event {
+        @Label("Peer")
+        String peer;
+        @Label("Local Port")
+        int localPort;
+    }
+
+    @Name("net.techcrystal.jdrop.CodeVerified")
+    @Label("Code Verified")
+    @Category("JDrop")
+    @StackTrace(false)
+    static class CodeVerified extends Event {
+        @Label("Peer")
+        String peer;
+        @Label("Matched")
+        boolean matched;
+        @Label("Handshake")
+        @Description("Time from accepting the connection until the code was read")
+        @Timespan(Timespan.NANOSECONDS)
+        long handshake;
+    }
+
+    @Name("net.techcrystal.jdrop.HeaderParsed")
+    @Label("Header Parsed")
+    @Category("JDrop")
+    @StackTrace(false)
+    static class HeaderParsed extends Event {
+        @Label("Peer")
+        String peer;
+        @Label("Type")
+        String type;
+        @Label("Name")
+        String name;
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("net.techcrystal.jdrop.TransferStarted")
+    @Label("Transfer Started")
+    @Category("JDrop")
+    @StackTrace(false)
+    static class TransferStarted extends Event {
+        @Label("Peer")
+        String peer;
+        @Label("Incoming")
+        boolean incoming;
+        @Label("File")
+        String file;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Offset")
+        @Description("Bytes transferred before, when resuming")
+        @DataAmount
+        long offset;
+    }
+
+    @Name("net.techcrystal.jdrop.TransferEnded")
+    @Label("Transfer Ended")
+    @Category("JDrop")
+    @StackTrace(false)
+    static class TransferEnded extends Event {
+        @Label("Peer")
+        String peer;
+        @Label("Incoming")
+        boolean incoming;
+        @Label("File")
+        String file;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Bytes Transferred")
+        @DataAmount
+        long bytes;
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+        @Label("Outcome")
+        String outcome;
+        @Label("Failure")
+        String failure;
+    }
+
+    @Name("net.techcrystal.jdrop.ChunkWritten")
+    @Label("Chunk Written")
+    @Category("JDrop")
+    @Description("A sample of the received chunks written to disk, and every slow write")
+    @StackTrace(false)
+    static class ChunkWritten extends Event {
+        @Label("Size")
+        @DataAmount
+        int size;
+        @Label("Write Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long writeTime;
+    }
+
+    static void connectionAccepted(SocketAddress peer, int localPort) {
+        ConnectionAccepted event = new ConnectionAccepted();
+        if (!event.shouldCommit()) return;
+        event.peer = String.valueOf(peer);
+        event.localPort = localPort;
+        event.commit();
+    }
+
+    static void codeVerified(SocketAddress peer, boolean matched, long nanos) {
+        CodeVerified event = new CodeVerified();
+        if (!event.shouldCommit()) return;
+        event.peer = String.valueOf(peer);
+        event.matched = matched;
+        event.handshake = nanos;
+        event.commit();
+    }
+
+    static void headerParsed(SocketAddress peer, String type, String name, long size) {
+        HeaderParsed event = new HeaderParsed();
+        if (!event.shouldCommit()) return;
+        event.peer = String.valueOf(peer);
+        event.type = type;
+        event.name = name;
+        event.size = size;
+        event.commit();
+    }
+
+    static void transferStarted(SocketAddress peer, boolean incoming, String file, long size, long offset) {
+        TransferStarted event = new TransferStarted();
+        if (!event.shouldCommit()) return;
+        event.peer = String.valueOf(peer);
+        event.incoming = incoming;
+        event.file = file;
+        event.size = size;
+        event.offset = offset;
+        event.commit();
+    }
+
+    static void transferEnded(SocketAddress peer, boolean incoming, String file, long size, long bytes, long nanos,
+                              Throwable failure, boolean cancelled) {
+        TransferEnded event = new TransferEnded();
+        if (!event.shouldCommit()) return;
+        event.peer = String.valueOf(peer);
+        event.incoming = incoming;
+        event.file = file;
+        event.size = size;
+        event.bytes = bytes;
+        event.elapsed = nanos;
+        event.outcome = cancelled ? "cancelled" : failure != null ? "failed" : "completed";
+        event.failure = failure != null && !cancelled ? failure.toString() : null;
+        event.commit();
+    }
+
+    static void chunkWritten(int numBytes, long nanos) {
+        ChunkWritten event = new ChunkWritten();
+        if (!event.isEnabled()) return;
+        if (nanos < SLOW_WRITE && ThreadLocalRandom.current().nextInt(CHUNK_SAMPLE) != 0) return;
+        event.size = numBytes;
+        event.writeTime = nanos;
+        event.commit();
+    }
+}
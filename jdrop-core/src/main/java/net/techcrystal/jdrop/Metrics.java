@@ -0,0 +1,280 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code Metrics} class counts what a {@link Server} sends and receives: bytes, transfers, handshake latency,
+ * the throughput of each received transfer, the current send and receive rates, the latency of each chunk written to
+ * disk, connections rejected because of a wrong code and the time receiving waited for the disk. Recording never
+ * allocates and never blocks, so it is done straight from the transfer paths; the counters are read through
+ * {@link MetricsMXBean} (JMX) and {@link #report()}, which the server logs every
+ * {@link ServerConfig#getMetricsInterval()} seconds.
+ */
+public class Metrics implements MetricsMXBean {
+    /**
+     * The JMX object name a started server registers its metrics under.
+     */
+    public static final String OBJECT_NAME = "net.techcrystal.jdrop:type=Metrics,port=" + Server.DEFAULT_PORT;
+
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder activeTransfers = new LongAdder();
+    private final LongAdder completedTransfers = new LongAdder();
+    private final LongAdder failedTransfers = new LongAdder();
+    private final LongAdder cancelledTransfers = new LongAdder();
+    private final LongAdder codeMismatches = new LongAdder();
+    private final LongAdder diskStalls = new LongAdder();
+    private final LongAdder diskStallNanos = new LongAdder();
+    private final Histogram handshakeLatency = new Histogram();
+    private final Histogram transferThroughput = new Histogram();
+    private final Histogram chunkWriteLatency = new Histogram();
+    private final RateLimiter sendLimiter;
+    private final RateLimiter receiveLimiter;
+    private long lastReport = System.nanoTime();
+    private long lastBytesReceived;
+    private long lastBytesSent;
+
+    /**
+     * Instantiate a new {@code Metrics} instance.
+     * @param sendLimiter the limiter all sends pass through, which measures the current send rate
+     * @param receiveLimiter the limiter all receives pass through, which measures the current receive rate
+     */
+    Metrics(RateLimiter sendLimiter, RateLimiter receiveLimiter) {
+        this.sendLimiter = sendLimiter;
+        this.receiveLimiter = receiveLimiter;
+    }
+
+    void received(long numBytes) {
+        bytesReceived.add(numBytes);
+    }
+
+    void sent(long numBytes) {
+        bytesSent.add(numBytes);
+    }
+
+    /**
+     * Record that the code and type of an incoming connection have been read.
+     * @param nanos the time since the connection was accepted
+     */
+    void handshake(long nanos) {
+        handshakeLatency.record(nanos / 1000);
+    }
+
+    void codeMismatch() {
+        codeMismatches.increment();
+    }
+
+    /**
+     * Record that a received chunk has been written to disk.
+     * @param nanos how long writing the chunk took
+     */
+    void chunkWritten(long nanos) {
+        chunkWriteLatency.record(nanos / 1000);
+    }
+
+    /**
+     * Record that receiving waited for the disk because all buffers of a transfer were waiting to be written.
+     * @param nanos how long receiving waited
+     */
+    void diskStalled(long nanos) {
+        diskStalls.increment();
+        diskStallNanos.add(nanos);
+    }
+
+    /**
+     * Count a received transfer as active until it completes, and then as completed, failed or cancelled. The bytes
+     * it receives are counted as they are reported to it.
+     * @param transfer the incoming transfer
+     */
+    void track(Transfer transfer) {
+        long initial = transfer.getBytesTransferred();
+        activeTransfers.increment();
+        transfer.setMeter(bytesReceived::add);
+        transfer.getCompletion().whenComplete((numBytes, e) -> {
+            activeTransfers.decrement();
+            if (e == null) {
+                completedTransfers.increment();
+                long elapsed = transfer.getElapsedNanos();
+                if (elapsed > 0) transferThroughput.record((long) ((numBytes - initial) * 1e9 / elapsed));
+            } else if (transfer.isCancelled()) {
+                cancelledTransfers.increment();
+            } else {
+                failedTransfers.increment();
+            }
+        });
+    }
+
+    /**
+     * Summarize the metrics in one line, with the rates since the previous call. This is meant to be called
+     * periodically from a single thread.
+     * @return the summary
+     */
+    String report() {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - lastReport, 1) / 1e9;
+        long received = bytesReceived.sum();
+        long sent = bytesSent.sum();
+        String line = String.format("Received %s (%s/s), sent %s (%s/s); transfers: %d active, %d completed, "
+                        + "%d failed, %d cancelled; %d code mismatches; handshake %d/%d us, chunk write %d/%d us "
+                        + "(median/99th); %d disk stalls (%d ms)",
+                Server.humanReadableByteCount(received, false),
+                Server.humanReadableByteCount((long) ((received - lastBytesReceived) / seconds), false),
+                Server.humanReadableByteCount(sent, false),
+                Server.humanReadableByteCount((long) ((sent - lastBytesSent) / seconds), false),
+                getActiveTransfers(), getCompletedTransfers(), getFailedTransfers(), getCancelledTransfers(),
+                getCodeMismatches(), getHandshakeLatencyMedian(), getHandshakeLatency99thPercentile(),
+                getChunkWriteLatencyMedian(), getChunkWriteLatency99thPercentile(), getDiskStalls(),
+                getDiskStallNanos() / 1000000);
+        lastReport = now;
+        lastBytesReceived = received;
+        lastBytesSent = sent;
+        return line;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getActiveTransfers() {
+        return activeTransfers.sum();
+    }
+
+    @Override
+    public long getCompletedTransfers() {
+        return completedTransfers.sum();
+    }
+
+    @Override
+    public long getFailedTransfers() {
+        return failedTransfers.sum();
+    }
+
+    @Override
+    public long getCancelledTransfers() {
+        return cancelledTransfers.sum();
+    }
+
+    @Override
+    public long getCodeMismatches() {
+        return codeMismatches.sum();
+    }
+
+    @Override
+    public long getHandshakes() {
+        return handshakeLatency.getCount();
+    }
+
+    @Override
+    public long getHandshakeLatencyMedian() {
+        return handshakeLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getHandshakeLatency99thPercentile() {
+        return handshakeLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getHandshakeLatencyMax() {
+        return handshakeLatency.getMax();
+    }
+
+    @Override
+    public long getTransferThroughputMedian() {
+        return transferThroughput.getPercentile(0.5);
+    }
+
+    @Override
+    public double getTransferThroughputMean() {
+        return transferThroughput.getMean();
+    }
+
+    @Override
+    public long getTransferThroughput10thPercentile() {
+        return transferThroughput.getPercentile(0.1);
+    }
+
+    @Override
+    public long getChunkWrites() {
+        return chunkWriteLatency.getCount();
+    }
+
+    @Override
+    public long getChunkWriteLatencyMedian() {
+        return chunkWriteLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getChunkWriteLatency99thPercentile() {
+        return chunkWriteLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getChunkWriteLatencyMax() {
+        return chunkWriteLatency.getMax();
+    }
+
+    @Override
+    public long getDiskStalls() {
+        return diskStalls.sum();
+    }
+
+    @Override
+    public long getDiskStallNanos() {
+        return diskStallNanos.sum();
+    }
+
+    @Override
+    public long getSendRate() {
+        return sendLimiter.getThroughput();
+    }
+
+    @Override
+    public long getReceiveRate() {
+        return receiveLimiter.getThroughput();
+    }
+
+    @Override
+    public long getSendLimit() {
+        return sendLimiter.getRate();
+    }
+
+    @Override
+    public void setSendLimit(long sendLimit) {
+        sendLimiter.setRate(sendLimit);
+    }
+
+    @Override
+    public long getReceiveLimit() {
+        return receiveLimiter.getRate();
+    }
+
+    @Override
+    public void setReceiveLimit(long receiveLimit) {
+        receiveLimiter.setRate(receiveLimit);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+/**
+ * The management interface of {@link Metrics}, under which a started {@link Server} registers its metrics with the
+ * platform MBean server (see {@link Metrics#OBJECT_NAME}). Latencies are in microseconds and throughputs in bytes per
+ * second; percentiles are upper bounds, off by at most 12.5%. The send and receive limits (in bytes per second, 0 for
+ * none) are writable, so that they can be changed from any JMX console while the server runs.
+ */
+public interface MetricsMXBean {
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getActiveTransfers();
+
+    long getCompletedTransfers();
+
+    long getFailedTransfers();
+
+    long getCancelledTransfers();
+
+    long getCodeMismatches();
+
+    long getHandshakes();
+
+    long getHandshakeLatencyMedian();
+
+    long getHandshakeLatency99thPercentile();
+
+    long getHandshakeLatencyMax();
+
+    long getTransferThroughputMedian();
+
+    double getTransferThroughputMean();
+
+    long getTransferThroughput10thPercentile();
+
+    long getChunkWrites();
+
+    long getChunkWriteLatencyMedian();
+
+    long getChunkWriteLatency99thPercentile();
+
+    long getChunkWriteLatencyMax();
+
+    long getDiskStalls();
+
+    long getDiskStallNanos();
+
+    long getSendRate();
+
+    long getReceiveRate();
+
+    long getSendLimit();
+
+    void setSendLimit(long sendLimit);
+
+    long getReceiveLimit();
+
+    void setReceiveLimit(long receiveLimit);
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@code NioEngine} class receives incoming connections for a {@link Server} with non-blocking I/O instead of a
+ * thread per connection. A small fixed set of selector threads multiplexes all connections: the first selector also
+ * accepts connections, which are then distributed among the selectors round-robin. Socket data is read into direct
+ * buffers leased from the {@link BufferPool} of the server, and every full buffer is handed to a pool of file
+ * writers, which write it at its offset in the destination file while the selector keeps reading into the next
+ * buffer. The engine speaks the same FILE/TEXT wire
+ * format as the blocking engine of {@link Server}; connections of other types are handed over to the blocking workers
+ * of the server once their type is known.
+ */
+class NioEngine {
+    private static final Logger LOG = Logger.getGlobal();
+
+    private enum State { HEADER, DECIDING, FILE, TEXT, CLOSED }
+
+    private final Server server;
+    private final ServerConfig config;
+    private final Consumer<Throwable> onErrorListener;
+    private final BufferPool buffers;
+    private final ExecutorService writers;
+    private final int maxPendingWrites;
+    private final Loop[] loops;
+    private final AtomicInteger connections;
+    private ServerSocketChannel listener;
+    private SelectionKey acceptKey;
+    private int next;
+
+    /**
+     * Instantiate a new {@code NioEngine} for the given server. Call {@link #start(int)} to start accepting
+     * connections.
+     * @param server the server that verifies codes and asks the user where to save incoming files
+     * @param config the settings of the server
+     * @param onErrorListener a {@link Consumer<Throwable>} instance to consume exceptions in the engine
+     */
+    NioEngine(Server server, ServerConfig config, Consumer<Throwable> onErrorListener) {
+        this.server = server;
+        this.config = config;
+        this.onErrorListener = onErrorListener;
+        maxPendingWrites = Math.max(1, config.getWriteBehindDepth());
+        buffers = server.getBuffers();
+        AtomicInteger writerCount = new AtomicInteger();
+        writers = Executors.newFixedThreadPool(config.getWriterThreads(), r -> {
+            Thread writer = new Thread(r, "jdrop-writer-" + writerCount.incrementAndGet());
+            writer.setDaemon(true);
+            return writer;
+        });
+        loops = new Loop[config.getSelectorThreads()];
+        connections = new AtomicInteger();
+    }
+
+    /**
+     * Bind the listening socket and start the selector threads.
+     * @param port the local port to listen on
+     * @throws IOException if the listening socket cannot be bound or a selector cannot be opened
+     */
+    void start(int port) throws IOException {
+        listener = ServerSocketChannel.open();
+        listener.configureBlocking(false);
+        listener.bind(new InetSocketAddress(port), config.getBacklog());
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(Selector.open());
+        }
+        acceptKey = listener.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "jdrop-selector-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        LOG.log(Level.INFO, "Server listening on port " + port + " with " + loops.length + " selector threads");
+    }
+
+    /**
+     * Stop accepting connections and close all open connections.
+     */
+    void stop() {
+        try {
+            listener.close();
+        } catch (IOException e) {
+            onErrorListener.accept(e);
+        }
+        for (Loop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        writers.shutdownNow();
+    }
+
+    /**
+     * Accept all pending connections and assign them to the selector threads. Runs on the first selector thread.
+     * Accepting is paused while {@link ServerConfig#getMaxConcurrency()} connections are open.
+     */
+    private void accept() {
+        while (connections.get() < config.getMaxConcurrency()) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch (IOException e) {
+                onErrorListener.accept(e);
+                return;
+            }
+            if (channel == null) return;
+            connections.incrementAndGet();
+            Loop loop = loops[next++ % loops.length];
+            loop.execute(() -> register(loop, channel));
+        }
+        acceptKey.interestOps(0);
+    }
+
+    private void register(Loop loop, SocketChannel channel) {
+        Socket socket = channel.socket();
+        LOG.log(Level.INFO, String.format("Received incoming connection from %s:%d through local port %d",
+                socket.getInetAddress(), socket.getPort(), socket.getLocalPort()));
+        try {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(loop.selector, SelectionKey.OP_READ);
+            key.attach(new Connection(loop, key));
+        } catch (IOException e) {
+            onErrorListener.accept(e);
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            release();
+        }
+    }
+
+    /**
+     * Free the connection slot of a closed connection and resume accepting if it was paused.
+     */
+    private void release() {
+        if (connections.getAndDecrement() >= config.getMaxConcurrency()) {
+            loops[0].execute(() -> {
+                if (acceptKey.isValid()) acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+            });
+        }
+    }
+
+    /**
+     * A selector thread. Other threads hand work to it through {@link #execute(Runnable)}, since the interest set of
+     * a key must be changed while its selector is not blocked in {@link Selector#select()}. Connections that are
+     * throttled by a {@link RateLimiter} stop reading and are resumed by the selector thread once their wait is over.
+     */
+    private class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        private final PriorityQueue<Connection> throttled;
+        private volatile boolean running;
+
+        private Loop(Selector selector) {
+            this.selector = selector;
+            tasks = new ConcurrentLinkedQueue<>();
+            throttled = new PriorityQueue<>(Comparator.comparingLong(c -> c.resumeAt));
+            running = true;
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    Connection next = throttled.peek();
+                    selector.select(next == null ? 0
+                            : Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.resumeAt - System.nanoTime())));
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    long now = System.nanoTime();
+                    while ((next = throttled.peek()) != null && next.resumeAt - now <= 0) {
+                        throttled.poll().resume();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            ((Connection) key.attachment()).onReadable();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                onErrorListener.accept(e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    onErrorListener.accept(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of a single connection. All methods run on the selector thread of the connection, except for the
+     * file writes which run on the writer pool and report back through {@link Loop#execute(Runnable)}.
+     */
+    private class Connection {
+        private final Loop loop;
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private final HeaderDecoder decoder;
+        private final long accepted;
+        private int fields;
+        private String filename;
+        private ByteArrayOutputStream text;
+        private State state;
+        private ByteBuffer buffer;
+        private Transfer transfer;
+        private FileChannel file;
+        private long size;
+        private long received;
+        private long position;
+        private int pendingWrites;
+        private long stalledSince;
+        private boolean paused;
+        private long resumeAt;
+
+        private Connection(Loop loop, SelectionKey key) {
+            this.loop = loop;
+            this.key = key;
+            channel = (SocketChannel) key.channel();
+            decoder = new HeaderDecoder();
+            accepted = System.nanoTime();
+            Socket socket = channel.socket();
+            TransferEvents.connectionAccepted(socket.getRemoteSocketAddress(), socket.getLocalPort());
+            state = State.HEADER;
+            buffer = buffers.acquire(config.getBufferSize());
+        }
+
+        private void onReadable() {
+            try {
+                int numBytes = channel.read(buffer);
+                if (numBytes < 0) {
+                    onEndOfStream();
+                } else if (state == State.FILE) {
+                    received += numBytes;
+                    long delay = transfer.throttleDelay(numBytes);
+                    if (!buffer.hasRemaining() || received == size) {
+                        flush();
+                    }
+                    if (delay > 0 && state == State.FILE && received < size) pause(delay);
+                } else {
+                    buffer.flip();
+                    parse();
+                    if (buffer != null) buffer.compact();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Decode header fields from the buffer (which must be in read mode) until the header is complete. For TEXT
+         * connections the payload that follows the header is collected as well.
+         */
+        private void parse() throws IOException {
+            while (state == State.HEADER && decoder.decode(buffer)) {
+                onHeaderField(++fields);
+            }
+            if (state == State.TEXT && buffer != null) {
+                collectText();
+            }
+        }
+
+        private void onHeaderField(int index) throws IOException {
+            switch (index) {
+                case 1:
+                    boolean matched = decoder.fieldEquals(server.getCode());
+                    TransferEvents.codeVerified(channel.socket().getRemoteSocketAddress(), matched,
+                            System.nanoTime() - accepted);
+                    if (!matched) {
+                        LOG.log(Level.INFO, "Code mismatch. Disconnecting.");
+                        server.getMetrics().codeMismatch();
+                        close();
+                    }
+                    break;
+                case 2:
+                    server.getMetrics().handshake(System.nanoTime() - accepted);
+                    if (decoder.fieldEquals("TEXT")) {
+                        state = State.TEXT;
+                        text = new ByteArrayOutputStream();
+                    } else if (!decoder.fieldEquals("FILE")) {
+                        handOff(decoder.fieldAsString());
+                    }
+                    break;
+                case 3:
+                    filename = decoder.fieldAsString();
+                    break;
+                case 4:
+                    size = decoder.fieldAsLong();
+                    TransferEvents.headerParsed(channel.socket().getRemoteSocketAddress(), "FILE", filename, size);
+                    state = State.DECIDING;
+                    key.interestOps(0);
+                    server.chooseDestination(filename, size)
+                            .whenComplete((file, e) -> loop.execute(() -> onDecision(file, e)));
+                    break;
+                default:
+            }
+        }
+
+        /**
+         * Append the text payload in the buffer up to the null terminator and display the text once it is complete.
+         */
+        private void collectText() {
+            int start = buffer.position();
+            int end = start;
+            while (end < buffer.limit() && buffer.get(end) != 0) end++;
+            byte[] bytes = new byte[end - start];
+            buffer.get(bytes);
+            text.write(bytes, 0, bytes.length);
+            if (buffer.hasRemaining()) {
+                server.displayText(text.toString());
+                close();
+            }
+        }
+
+        /**
+         * Start receiving the file once the user has chosen where to save it. Payload bytes that arrived together
+         * with the header are still in the buffer.
+         */
+        private void onDecision(File destination, Throwable e) {
+            if (state == State.CLOSED) return;
+            if (e != null || destination == null) {
+                if (e != null) onErrorListener.accept(e);
+                close();
+                return;
+            }
+            try {
+                file = FileChannel.open(destination.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException ex) {
+                onErrorListener.accept(ex);
+                close();
+                return;
+            }
+            LOG.log(Level.INFO, "Starting to write file...");
+            transfer = new Transfer(destination, size);
+            server.monitor(transfer, channel.socket().getRemoteSocketAddress());
+            transfer.getCompletion().whenComplete((numBytes, ex) -> {
+                if (transfer.isCancelled()) loop.execute(this::close);
+            });
+            state = State.FILE;
+            received = Math.min(buffer.position(), size);
+            buffer.position((int) received);
+            limit();
+            if (!buffer.hasRemaining() || received == size) {
+                flush();
+            }
+            if (state == State.FILE && received < size && pendingWrites < maxPendingWrites) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Stop reading until the limiters of the transfer allow more bytes.
+         * @param nanos how long to stop reading
+         */
+        private void pause(long nanos) {
+            paused = true;
+            key.interestOps(0);
+            resumeAt = System.nanoTime() + nanos;
+            loop.throttled.add(this);
+        }
+
+        private void resume() {
+            paused = false;
+            if (state == State.FILE && received < size && pendingWrites < maxPendingWrites) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Limit the buffer so that no bytes beyond the announced file size are read.
+         */
+        private void limit() {
+            buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + size - received));
+        }
+
+        /**
+         * Hand the filled buffer to a file writer and continue reading into a fresh one, as large as the I/O unit the
+         * transfer has adapted to from the time the writers take. Reading pauses while
+         * {@link ServerConfig#getWriteBehindDepth()} buffers are waiting to be written.
+         */
+        private void flush() {
+            ByteBuffer chunk = buffer;
+            chunk.flip();
+            long offset = position;
+            position += chunk.remaining();
+            pendingWrites++;
+            if (received < size) {
+                buffer = buffers.acquire(transfer.chunk(config.getMaxIoSize()));
+                limit();
+            } else {
+                buffer = null;
+            }
+            if (received == size || pendingWrites >= maxPendingWrites) {
+                key.interestOps(0);
+                if (received < size) stalledSince = System.nanoTime();
+            }
+            try {
+                writers.execute(() -> {
+                    int numBytes = chunk.remaining();
+                    try {
+                        long p = offset;
+                        long start = System.nanoTime();
+                        while (chunk.hasRemaining()) {
+                            p += file.write(chunk, p);
+                        }
+                        long nanos = System.nanoTime() - start;
+                        server.chunkWritten(numBytes, nanos);
+                        transfer.measure(numBytes, nanos);
+                        loop.execute(() -> onWritten(numBytes));
+                    } catch (IOException e) {
+                        loop.execute(() -> onWriteFailed(e));
+                    } finally {
+                        buffers.release(chunk);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pendingWrites--;
+                buffers.release(chunk);
+                fail(e);
+            }
+        }
+
+        private void onWritten(int numBytes) {
+            pendingWrites--;
+            if (state == State.CLOSED) {
+                if (pendingWrites == 0) closeFile();
+                return;
+            }
+            transfer.addProgress(numBytes);
+            if (position == size && pendingWrites == 0) {
+                closeFile();
+                LOG.log(Level.INFO, "Written " + size + " bytes to " + transfer.getFile().getAbsolutePath());
+                transfer.complete();
+                close();
+            } else if (received < size && pendingWrites < maxPendingWrites) {
+                if (!paused) key.interestOps(SelectionKey.OP_READ);
+                if (stalledSince != 0) {
+                    server.getMetrics().diskStalled(System.nanoTime() - stalledSince);
+                    stalledSince = 0;
+                }
+            }
+        }
+
+        private void onWriteFailed(IOException e) {
+            pendingWrites--;
+            if (state == State.CLOSED) {
+                if (pendingWrites == 0) closeFile();
+                return;
+            }
+            fail(e);
+        }
+
+        /**
+         * Hand the connection over to a blocking worker of the server, for the types this engine does not handle
+         * itself. The bytes already read past the type field are passed along.
+         * @param type the type field of the header
+         */
+        private void handOff(String type) {
+            byte[] readAhead = new byte[buffer.remaining()];
+            buffer.get(readAhead);
+            state = State.CLOSED;
+            key.cancel();
+            buffers.release(buffer);
+            buffer = null;
+            release();
+            // the key is deregistered by the next select, after which the channel may be switched to blocking mode
+            loop.execute(() -> server.handOff(channel, type, readAhead));
+        }
+
+        private void onEndOfStream() {
+            switch (state) {
+                case TEXT:
+                    server.displayText(text.toString());
+                    close();
+                    break;
+                case FILE:
+                    fail(new EOFException(String.format("Connection closed after %d of %d bytes", received, size)));
+                    break;
+                default:
+                    close();
+            }
+        }
+
+        private void fail(Throwable e) {
+            if (state == State.CLOSED) return;
+            if (transfer != null) {
+                transfer.fail(e);
+            } else {
+                onErrorListener.accept(e);
+            }
+            close();
+        }
+
+        private void close() {
+            if (state == State.CLOSED) return;
+            state = State.CLOSED;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                onErrorListener.accept(e);
+            }
+            if (buffer != null) {
+                buffers.release(buffer);
+                buffer = null;
+            }
+            if (pendingWrites == 0) closeFile();
+            release();
+        }
+
+        private void closeFile() {
+            if (file == null) return;
+            try {
+                file.close();
+            } catch (IOException e) {
+                onErrorListener.accept(e);
+            }
+            file = null;
+        }
+    }
+}
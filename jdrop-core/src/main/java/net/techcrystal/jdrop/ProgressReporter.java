@@ -0,0 +1,193 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The {@code ProgressReporter} class samples the progress of a {@link Transfer} at a fixed rate, instead of reacting
+ * to every chunk the transfer engine reports, and hands each sample to a listener together with the current and
+ * average throughput and the estimated time remaining. A user interface therefore updates at its frame rate however
+ * fast the link is. Samples are taken on a shared timer thread, so the listener must return quickly (e.g. by handing
+ * the sample to the thread of the user interface). A last sample is always reported once the transfer is done.
+ */
+public class ProgressReporter {
+    /**
+     * The default sampling interval in milliseconds, about 30 samples per second.
+     */
+    public static final long DEFAULT_INTERVAL = 33;
+    /**
+     * The time constant (in nanoseconds) over which the current throughput is smoothed.
+     */
+    public static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread timer = new Thread(r, "jdrop-progress");
+        timer.setDaemon(true);
+        return timer;
+    });
+
+    private final Transfer transfer;
+    private final Consumer<Sample> listener;
+    private final long initialBytes;
+    private final long startTime;
+    private final ScheduledFuture<?> task;
+    private long lastTime;
+    private long lastBytes;
+    private double rate;
+    private boolean finished;
+
+    /**
+     * Start sampling a transfer.
+     * @param transfer the transfer to sample
+     * @param interval the sampling interval in milliseconds, must be positive
+     * @param listener receives the samples on the timer thread
+     */
+    public ProgressReporter(Transfer transfer, long interval, Consumer<Sample> listener) {
+        this.transfer = transfer;
+        this.listener = listener;
+        initialBytes = transfer.getBytesTransferred();
+        startTime = System.nanoTime();
+        lastTime = startTime;
+        lastBytes = initialBytes;
+        task = TIMER.scheduleAtFixedRate(() -> sample(false), interval, interval, TimeUnit.MILLISECONDS);
+        transfer.getCompletion().whenComplete((numBytes, e) -> stop());
+    }
+
+    /**
+     * Start sampling a transfer every {@link #DEFAULT_INTERVAL} milliseconds.
+     * @param transfer the transfer to sample
+     * @param listener receives the samples on the timer thread
+     */
+    public ProgressReporter(Transfer transfer, Consumer<Sample> listener) {
+        this(transfer, DEFAULT_INTERVAL, listener);
+    }
+
+    /**
+     * Stop sampling and report a last sample. This is done automatically once the transfer is done.
+     */
+    public void stop() {
+        task.cancel(false);
+        sample(true);
+    }
+
+    private synchronized void sample(boolean last) {
+        if (finished) return;
+        finished = last;
+        long now = System.nanoTime();
+        long bytes = transfer.getBytesTransferred();
+        if (!last && bytes == lastBytes && rate == 0) return;
+        long elapsed = now - lastTime;
+        if (elapsed > 0) {
+            double current = (bytes - lastBytes) * 1e9 / elapsed;
+            // exponential smoothing with a time constant, so that the rate does not depend on the interval
+            double weight = 1 - Math.exp(-(double) elapsed / RATE_WINDOW);
+            rate = lastTime == startTime ? current : rate + weight * (current - rate);
+        }
+        lastTime = now;
+        lastBytes = bytes;
+        double average = now > startTime ? (bytes - initialBytes) * 1e9 / (now - startTime) : 0;
+        listener.accept(new Sample(bytes, transfer.getSize(), rate, average, last || transfer.isDone()));
+    }
+
+    /**
+     * One sample of the progress of a transfer.
+     */
+    public static class Sample {
+        private final long bytesTransferred;
+        private final long size;
+        private final double rate;
+        private final double averageRate;
+        private final boolean done;
+
+        Sample(long bytesTransferred, long size, double rate, double averageRate, boolean done) {
+            this.bytesTransferred = bytesTransferred;
+            this.size = size;
+            this.rate = rate;
+            this.averageRate = averageRate;
+            this.done = done;
+        }
+
+        public long getBytesTransferred() {
+            return bytesTransferred;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Return the fraction of the file that has been transferred.
+         * @return a value between 0 and 1
+         */
+        public double getProgress() {
+            return size > 0 ? Math.min(1, (double) bytesTransferred / size) : 1;
+        }
+
+        /**
+         * Return the current throughput, smoothed over about {@link #RATE_WINDOW}.
+         * @return the throughput in bytes per second
+         */
+        public double getRate() {
+            return rate;
+        }
+
+        /**
+         * Return the average throughput since sampling started.
+         * @return the throughput in bytes per second
+         */
+        public double getAverageRate() {
+            return averageRate;
+        }
+
+        /**
+         * Return the estimated time until the transfer is complete, at the current throughput.
+         * @return the time in nanoseconds, 0 if the transfer is done, or -1 if it is not moving
+         */
+        public long getRemainingNanos() {
+            if (done || bytesTransferred >= size) return 0;
+            double speed = rate > 0 ? rate : averageRate;
+            return speed > 0 ? (long) ((size - bytesTransferred) * 1e9 / speed) : -1;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Describe the sample for display, such as {@code 42% of 1.2 GiB, 35.0 MiB/s, 0:21 left}.
+         * @return the description
+         */
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder().append(String.format("%d%% of %s, %s/s",
+                    (int) (getProgress() * 100), Server.humanReadableByteCount(size, false),
+                    Server.humanReadableByteCount((long) (done ? averageRate : rate), false)));
+            long remaining = getRemainingNanos();
+            if (!done) {
+                long seconds = TimeUnit.NANOSECONDS.toSeconds(remaining);
+                text.append(remaining < 0 ? ", stalled" : String.format(", %d:%02d left", seconds / 60, seconds % 60));
+            }
+            return text.toString();
+        }
+    }
+}
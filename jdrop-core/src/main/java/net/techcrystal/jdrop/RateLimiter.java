@@ -0,0 +1,138 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code RateLimiter} class is a token bucket that limits the rate at which bytes are sent or received. The bucket
+ * holds {@link #BURST} worth of bytes at the current rate: bytes passed within that allowance go through right away,
+ * and beyond it the caller is told (or made) to wait until the bytes are paid for. The bucket is kept as a single
+ * timestamp (the time at which all bytes passed so far are paid for) that is advanced with compare-and-set, so
+ * transfers sharing a limiter never take a lock. The rate may be changed at any time, and every limiter also measures
+ * the throughput that actually passes through it, limited or not.
+ */
+public class RateLimiter {
+    public static final long BURST = TimeUnit.MILLISECONDS.toNanos(50);
+    public static final int MIN_CHUNK = 8 * 1024;
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLong paidUntil;
+    private final LongAdder total;
+    private volatile long rate;
+    private long measuredAt;
+    private long measuredTotal;
+    private long throughput;
+
+    /**
+     * Instantiate a new {@code RateLimiter}.
+     * @param rate the maximum rate in bytes per second, or 0 for no limit
+     */
+    public RateLimiter(long rate) {
+        if (rate < 0) throw new IllegalArgumentException("rate must not be negative: " + rate);
+        this.rate = rate;
+        paidUntil = new AtomicLong(System.nanoTime());
+        total = new LongAdder();
+        measuredAt = System.nanoTime();
+    }
+
+    /**
+     * Change the maximum rate. The change applies right away, also to transfers that are already running.
+     * @param rate the maximum rate in bytes per second, or 0 for no limit
+     */
+    public void setRate(long rate) {
+        if (rate < 0) throw new IllegalArgumentException("rate must not be negative: " + rate);
+        this.rate = rate;
+        // forgive the debt run up at the old rate
+        long now = System.nanoTime();
+        paidUntil.accumulateAndGet(now, Math::min);
+    }
+
+    /**
+     * Return the maximum rate.
+     * @return the maximum rate in bytes per second, or 0 for no limit
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Return the rate at which bytes passed through this limiter, averaged since the previous measurement that is at
+     * least a second old.
+     * @return the measured rate in bytes per second
+     */
+    public synchronized long getThroughput() {
+        long now = System.nanoTime();
+        if (now - measuredAt >= SECOND) {
+            long sum = total.sum();
+            throughput = (long) ((sum - measuredTotal) * 1e9 / (now - measuredAt));
+            measuredAt = now;
+            measuredTotal = sum;
+        }
+        return throughput;
+    }
+
+    /**
+     * Take bytes from the bucket without waiting.
+     * @param numBytes the number of bytes that were (or are about to be) transferred
+     * @return how long (in nanoseconds) to wait before transferring more, 0 if no wait is needed
+     */
+    long take(long numBytes) {
+        total.add(numBytes);
+        long rate = this.rate;
+        if (rate == 0) return 0;
+        long cost = (long) (numBytes * 1e9 / rate);
+        long now = System.nanoTime();
+        long previous;
+        long next;
+        do {
+            previous = paidUntil.get();
+            next = Math.max(previous, now) + cost;
+        } while (!paidUntil.compareAndSet(previous, next));
+        return Math.max(0, next - now - BURST);
+    }
+
+    /**
+     * Return how many bytes to transfer at once so that each wait stays short at the current rate.
+     * @param max the chunk size to use without a limit
+     * @return the chunk size, between {@link #MIN_CHUNK} (or {@code max} if smaller) and {@code max}
+     */
+    int chunk(int max) {
+        long rate = this.rate;
+        if (rate == 0) return max;
+        return (int) Math.min(max, Math.max(MIN_CHUNK, rate * BURST / SECOND));
+    }
+
+    /**
+     * Helper method to wait while a transfer is throttled.
+     * @param nanos the time to wait
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    static void pause(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code SendScheduler} class runs the sends submitted to a {@link Server}. Sends are split into two lanes that
+ * each run up to a fixed number of sends at a time: an express lane for texts and files smaller than
+ * {@link #SMALL_SEND}, and a bulk lane for everything else, so that a short text never waits behind large uploads.
+ * Within a lane, texts go before files, and each host may only take up to a limited number of the running sends. When
+ * a slot frees up, it goes to the host that was served longest ago among the highest priority sends waiting, so that
+ * hosts take turns instead of one host's backlog holding up everyone else's.
+ */
+class SendScheduler {
+    static final long SMALL_SEND = 1024 * 1024;
+
+    private static final int EXPRESS = 0;
+    private static final int BULK = 1;
+
+    private final int maxSends;
+    private final int maxSendsPerHost;
+    private final int capacity;
+    private final ExecutorService executor;
+    private final List<Send> pending;
+    private final int[] running;
+    private final Map<String, int[]> active;
+    private final Map<String, Long> served;
+    private long turns;
+    private long submitted;
+    private boolean shutdown;
+
+    /**
+     * Instantiate a new {@code SendScheduler}.
+     * @param maxSends the maximum number of sends running at the same time in each lane
+     * @param maxSendsPerHost the maximum number of sends to the same host running at the same time in each lane
+     * @param capacity the maximum number of sends waiting to run
+     */
+    SendScheduler(int maxSends, int maxSendsPerHost, int capacity) {
+        this.maxSends = maxSends;
+        this.maxSendsPerHost = maxSendsPerHost;
+        this.capacity = capacity;
+        AtomicInteger sendCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread send = new Thread(r, "jdrop-send-" + sendCount.incrementAndGet());
+            send.setDaemon(true);
+            return send;
+        });
+        pending = new ArrayList<>();
+        running = new int[2];
+        active = new HashMap<>();
+        served = new HashMap<>();
+    }
+
+    /**
+     * Queue a send, and start it right away if its lane and host have a free slot.
+     * @param host the remote host the send goes to
+     * @param size the size (in bytes) of the payload
+     * @param text whether the payload is a text
+     * @param completion the completion of the send; the send is skipped if it is done (e.g. cancelled) before it runs
+     * @param send the send to run
+     * @throws RejectedExecutionException if the queue is full or the scheduler is shut down
+     */
+    synchronized void submit(String host, long size, boolean text, CompletableFuture<?> completion, Runnable send) {
+        if (shutdown) throw new RejectedExecutionException("The server was interrupted");
+        pending.removeIf(s -> s.completion.isDone());
+        if (pending.size() >= capacity) {
+            throw new RejectedExecutionException("The send queue is full (" + capacity + " sends waiting)");
+        }
+        int priority = text ? 0 : size < SMALL_SEND ? 1 : 2;
+        pending.add(new Send(host, priority, priority < 2 ? EXPRESS : BULK, submitted++, completion, send));
+        dispatch();
+    }
+
+    /**
+     * Start waiting sends while there are free slots for them.
+     */
+    private void dispatch() {
+        while (true) {
+            Send next = null;
+            for (Send send : pending) {
+                if (send.completion.isDone() || running[send.lane] >= maxSends
+                        || activeSends(send.host, send.lane) >= maxSendsPerHost) {
+                    continue;
+                }
+                if (next == null || before(send, next)) next = send;
+            }
+            if (next == null) {
+                pending.removeIf(s -> s.completion.isDone());
+                return;
+            }
+            pending.remove(next);
+            start(next);
+        }
+    }
+
+    private boolean before(Send a, Send b) {
+        if (a.priority != b.priority) return a.priority < b.priority;
+        long servedA = served.getOrDefault(a.host, -1L);
+        long servedB = served.getOrDefault(b.host, -1L);
+        if (servedA != servedB) return servedA < servedB;
+        return a.sequence < b.sequence;
+    }
+
+    private int activeSends(String host, int lane) {
+        int[] counts = active.get(host);
+        return counts == null ? 0 : counts[lane];
+    }
+
+    private void start(Send send) {
+        running[send.lane]++;
+        active.computeIfAbsent(send.host, h -> new int[2])[send.lane]++;
+        served.put(send.host, turns++);
+        executor.execute(() -> {
+            try {
+                if (!send.completion.isDone()) send.send.run();
+            } finally {
+                finished(send);
+            }
+        });
+    }
+
+    private synchronized void finished(Send send) {
+        running[send.lane]--;
+        int[] counts = active.get(send.host);
+        if (--counts[send.lane] == 0 && counts[1 - send.lane] == 0) active.remove(send.host);
+        if (!shutdown) dispatch();
+    }
+
+    /**
+     * Cancel the sends that are still waiting and interrupt the running ones.
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        for (Send send : pending) {
+            send.completion.cancel(false);
+        }
+        pending.clear();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Return the number of sends waiting to run.
+     * @return the number of waiting sends
+     */
+    synchronized int getPending() {
+        pending.removeIf(s -> s.completion.isDone());
+        return pending.size();
+    }
+
+    private static class Send {
+        private final String host;
+        private final int priority;
+        private final int lane;
+        private final long sequence;
+        private final CompletableFuture<?> completion;
+        private final Runnable send;
+
+        Send(String host, int priority, int lane, long sequence, CompletableFuture<?> completion, Runnable send) {
+            this.host = host;
+            this.priority = priority;
+            this.lane = lane;
+            this.sequence = sequence;
+            this.completion = completion;
+            this.send = send;
+        }
+    }
+}
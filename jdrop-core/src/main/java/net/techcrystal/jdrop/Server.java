@@ -0,0 +1,2183 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.zip.Checksum;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The {@code Server} class is both the server and the client for JDrop. By default, it listens to incoming connections
+ * from other JDrop clients and sends text or file to other JDrop clients through port 10001.
+ * The protocol for transmitting over a socket is as follows:
+ * <pre>{@code
+ *     [6-bit code]\0[type (either "FILE" or "TEXT")]\0
+ *      If "FILE" type: [filename]\0[file size]\0[payload]
+ *      If "TEXT" type: [payload]\0
+ *      If "PART" type: [transfer id]\0[filename]\0[file size]\0[stripe count]\0[offset]\0[length]\0[payload]
+ *      If "XFILE" type: [options]\0[filename]\0[file size]\0[file id]\0
+ *                       <- [accepted options]\0[offset]\0
+ *                       [payload from offset]
+ *      If "BATCH" type: [name]\0[file count]\0[total size]\0
+ *                       [relative path]\0[file size]\0 (once per file)
+ *                       [payloads of all files back to back]}
+ * </pre>
+ * A "PART" connection carries one stripe (the given byte range) of a file that is sent over several parallel
+ * connections sharing the same transfer id. All of them must announce the same file size and a stripe count of at most
+ * {@link ServerConfig#MAX_STRIPES}, and their ranges must not overlap. A striped transfer that goes without activity
+ * for {@link ServerConfig#getStripeTimeout()} fails, e.g. when the sender died before opening every stripe.
+ * <p>
+ * A "BATCH" connection carries many files, typically a directory tree, under one code: the receiver is asked once
+ * where to save the directory of the given name, and the files are created in it at their relative paths (separated
+ * by '/'), which must not leave that directory.
+ * <p>
+ * An "XFILE" connection is negotiated: the sender lists the options it wants as a comma-separated list, and the
+ * receiver answers with the options it accepted and the offset to continue from. The options are
+ * <ul>
+ *     <li>"resume": the receiver keeps a {@link TransferJournal} next to the partial file, so that a sender
+ *     reconnecting with the same file id continues where the previous connection stopped</li>
+ *     <li>"crc32c": the payload is framed into checksummed chunks (see {@link ChunkFrames}); after the last frame
+ *     the receiver answers with the chunks that failed verification as {@code [count]\0[chunk]\0...}, and the sender
+ *     sends just those frames again until the count is 0</li>
+ *     <li>"dedup": the payload is split into content-defined chunks (see {@link Chunker}). The sender lists them as
+ *     {@code [count]\0[SHA-256]\0[length]\0...}, the receiver answers with the chunks missing from its
+ *     {@link ChunkStore} as {@code [count]\0[chunk]\0...}, and the sender sends just those chunks back to back.
+ *     Accepted only by receivers with a chunk store, and replaces "crc32c" since every chunk is verified against its
+ *     hash</li>
+ *     <li>"delta": the payload is sent as a delta against the file the receiver already has at the destination (see
+ *     {@link Delta}). After its reply, the receiver sends the signatures of the blocks of that file, and the sender
+ *     answers with literal data and copy instructions. The new version is rebuilt next to the existing file, which it
+ *     replaces only once it matches the MD5 the sender computed. Accepted only when such a file exists and the
+ *     transfer starts at offset 0; replaces "crc32c" since the whole file is checked against its MD5</li>
+ *     <li>the name of a {@link Codec}: the payload is sent compressed with this codec; with "crc32c", the frames of
+ *     each round are compressed as a separate stream</li>
+ * </ul>
+ */
+public class Server {
+    public static final int DEFAULT_PORT = 10001;
+    public static final int DEFAULT_CHUNK = 8192;
+    public static final int RECEIVE_CHUNK = 256 * 1024;
+    public static final long MAP_WINDOW = 64L * 1024 * 1024;
+    public static final long RETRY_DELAY = 1000;
+    public static final int RESUMABLE_READ_TIMEOUT = 60000;
+    public static final int REPAIR_ROUNDS = 3;
+    public static final int PACK_LIMIT = 64 * 1024;
+    public static final long SEND_CHUNK = 4L * 1024 * 1024;
+    public static final Logger LOG = Logger.getGlobal();
+
+    private static final ThreadLocal<HeaderDecoder> DECODERS =
+            ThreadLocal.withInitial(() -> new HeaderDecoder(DEFAULT_CHUNK));
+
+    private ServerConfig config;
+    private ServerSocketChannel listener;
+    private Random random;
+    private volatile String code;
+    private TransferListener transferListener;
+    private Consumer<Throwable> onErrorListener;
+    private ReentrantLock lock;
+    private Thread serverThread;
+    private NioEngine nioEngine;
+    private ExecutorService workers;
+    private ExecutorService senders;
+    private SendScheduler sendScheduler;
+    private ExecutorService diskWriters;
+    private BufferPool buffers;
+    private ScheduledExecutorService reporter;
+    private ScheduledExecutorService stripeReaper;
+    private Metrics metrics;
+    private RateLimiter sendLimiter;
+    private RateLimiter receiveLimiter;
+    private Map<String, RateLimiter> peerLimiters;
+    private volatile long peerLimit;
+    private ObjectName exported;
+    private Semaphore permits;
+    private StripeTuner stripeTuner;
+    private Map<String, StripedReceive> stripedReceives;
+    private Map<String, File> interruptedReceives;
+    private Set<String> cancelledReceives;
+    private ChunkStore chunkStore;
+
+    /**
+     * Construct a new {@code Server} instance with a given configuration and listeners. Incoming files and texts are
+     * handed to the transfer listener, and all exceptions are routed to the error listener for handling. Call
+     * {@link #start()} to start receiving; a server that is only used to send does not need to be started.
+     * @param config the settings of this server
+     * @param transferListener the {@link TransferListener} that decides about and observes incoming transfers
+     * @param onErrorListener a {@link Consumer<Throwable>} instance to consume exceptions in server.
+     */
+    public Server(final ServerConfig config, final TransferListener transferListener,
+                  final Consumer<Throwable> onErrorListener) {
+        this.config = config;
+        this.transferListener = transferListener;
+        this.onErrorListener = onErrorListener;
+        random = new Random();
+        renewCode();
+
+        lock = new ReentrantLock();
+        permits = new Semaphore(config.getMaxConcurrency());
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(config.getMaxConcurrency(), r -> {
+            Thread worker = new Thread(r, "jdrop-worker-" + workerCount.incrementAndGet());
+            worker.setDaemon(true);
+            return worker;
+        });
+        AtomicInteger senderCount = new AtomicInteger();
+        senders = Executors.newCachedThreadPool(r -> {
+            Thread sender = new Thread(r, "jdrop-sender-" + senderCount.incrementAndGet());
+            sender.setDaemon(true);
+            return sender;
+        });
+        sendScheduler = new SendScheduler(config.getMaxSends(), config.getMaxSendsPerHost(), config.getSendQueue());
+        AtomicInteger diskWriterCount = new AtomicInteger();
+        diskWriters = Executors.newCachedThreadPool(r -> {
+            Thread writer = new Thread(r, "jdrop-disk-" + diskWriterCount.incrementAndGet());
+            writer.setDaemon(true);
+            return writer;
+        });
+        buffers = new BufferPool(config.getBufferMemory(), config.isBufferLeakDetection());
+        sendLimiter = new RateLimiter(config.getSendLimit());
+        receiveLimiter = new RateLimiter(config.getReceiveLimit());
+        peerLimiters = new ConcurrentHashMap<>();
+        peerLimit = config.getPeerLimit();
+        metrics = new Metrics(sendLimiter, receiveLimiter);
+        stripeTuner = new StripeTuner(config.getMaxStripes());
+        stripedReceives = new ConcurrentHashMap<>();
+        interruptedReceives = new ConcurrentHashMap<>();
+        cancelledReceives = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Start receiving. This opens a single long-lived listening socket and accepts connections from remote hosts in a
+     * separate thread. Each connection is handled by a bounded pool of worker threads, so at most
+     * {@link ServerConfig#getMaxConcurrency()} transfers run at the same time while further connections wait in the
+     * accept backlog. If the {@link ServerConfig.Engine#NIO} engine is configured, connections are received by a
+     * {@link NioEngine} instead. If a chunk store is configured, it is opened first; without it, deduplicated
+     * transfers are declined. The {@link Metrics} of the server are registered with the platform MBean server under
+     * {@link Metrics#OBJECT_NAME} and logged every {@link ServerConfig#getMetricsInterval()} seconds.
+     */
+    public void start() {
+        try {
+            exported = new ObjectName(Metrics.OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, exported);
+        } catch (JMException e) {
+            exported = null;
+            LOG.log(Level.WARNING, "Metrics are not exported through JMX: " + e);
+        }
+        if (config.getMetricsInterval() > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "jdrop-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(() -> LOG.log(Level.INFO, metrics.report()), config.getMetricsInterval(),
+                    config.getMetricsInterval(), TimeUnit.SECONDS);
+        }
+        stripeReaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "jdrop-stripe-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, config.getStripeTimeout() / 4);
+        stripeReaper.scheduleWithFixedDelay(this::expireStripedReceives, period, period, TimeUnit.MILLISECONDS);
+        if (config.getChunkStore() != null) {
+            try {
+                chunkStore = new ChunkStore(config.getChunkStore().toPath(), config.getChunkStoreBudget());
+            } catch (IOException e) {
+                onErrorListener.accept(e);
+            }
+        }
+        if (config.getEngine() == ServerConfig.Engine.NIO) {
+            nioEngine = new NioEngine(this, config, onErrorListener);
+            try {
+                nioEngine.start(DEFAULT_PORT);
+            } catch (IOException e) {
+                onErrorListener.accept(e);
+            }
+        } else {
+            serverThread = new Thread(this::listen, "jdrop-acceptor");
+            serverThread.start();
+        }
+    }
+
+    /**
+     * Accept connections on the listening socket until the server is interrupted. A worker permit is acquired before
+     * each accept so that connections beyond the concurrency limit are left in the accept backlog.
+     */
+    private void listen() {
+        try {
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(DEFAULT_PORT), config.getBacklog());
+            LOG.log(Level.INFO, "Server listening on port " + DEFAULT_PORT);
+        } catch (IOException e) {
+            onErrorListener.accept(e);
+            return;
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                permits.acquire();
+                SocketChannel channel = listener.accept();
+                try {
+                    workers.execute(() -> {
+                        try {
+                            Server.this.accept(channel.socket());
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    channel.close();
+                    break;
+                }
+            } catch (InterruptedException | ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                permits.release();
+                onErrorListener.accept(e);
+            }
+        }
+        LOG.log(Level.INFO, "Server stopped listening on port " + DEFAULT_PORT);
+    }
+
+    /**
+     * Process an incoming connection request according to the transport protocol. This includes:
+     * <ol>
+     *     <li>Verify code</li>
+     *     <li>Determine whether text or file is being sent</li>
+     *     <li>Accept text/file and display/save it</li>
+     * </ol>
+     * The socket is closed once the connection has been processed.
+     * @param socket the socket attached to the {@link ServerSocket} instance to read from
+     */
+    private void accept(Socket socket) {
+        long accepted = System.nanoTime();
+        LOG.log(Level.INFO, String.format("Received incoming connection from %s:%d through local port %d",
+                socket.getInetAddress(), socket.getPort(), socket.getLocalPort()));
+        TransferEvents.connectionAccepted(socket.getRemoteSocketAddress(), socket.getLocalPort());
+        try {
+            HeaderDecoder header = DECODERS.get().reset(socket.getInputStream());
+            header.next();
+            boolean matched = header.fieldEquals(code);
+            TransferEvents.codeVerified(socket.getRemoteSocketAddress(), matched, System.nanoTime() - accepted);
+            if (!matched) {
+                LOG.log(Level.INFO, "Code mismatch. Disconnecting.");
+                metrics.codeMismatch();
+                disconnect(socket);
+                return;
+            }
+            header.next();
+            metrics.handshake(System.nanoTime() - accepted);
+            receive(header.fieldAsString(), header, socket);
+        } catch (IOException e) {
+            onErrorListener.accept(e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                onErrorListener.accept(e);
+            }
+        }
+    }
+
+    /**
+     * Determine whether text or file is being sent and accept it.
+     * @param type the type field of the header
+     * @param header the decoder positioned after the type field of the header
+     * @param socket the socket the connection was received on
+     * @throws IOException if the connection cannot be read
+     */
+    private void receive(String type, HeaderDecoder header, Socket socket) throws IOException {
+        switch (type) {
+            case "FILE":
+                acceptFile(header, socket);
+                break;
+            case "TEXT":
+                readText(header.body());
+                break;
+            case "PART":
+                acceptPart(header, socket);
+                break;
+            case "XFILE":
+                acceptNegotiatedFile(header, socket);
+                break;
+            case "BATCH":
+                acceptBatch(header, socket);
+                break;
+            default:
+                LOG.log(Level.WARNING, "Unrecognized type: " + type + ". Disconnecting.");
+                disconnect(socket);
+                break;
+        }
+    }
+
+    /**
+     * Continue processing a connection on a worker thread after the {@link NioEngine} has read its code and type.
+     * This is used for the types that the non-blocking engine does not handle itself.
+     * @param channel the connection, which must no longer be registered with a selector
+     * @param type the type field of the header
+     * @param readAhead the bytes following the type field that have already been read from the channel
+     */
+    void handOff(SocketChannel channel, String type, byte[] readAhead) {
+        workers.execute(() -> {
+            Socket socket = channel.socket();
+            try {
+                channel.configureBlocking(true);
+                receive(type, DECODERS.get().reset(socket.getInputStream(), readAhead), socket);
+            } catch (IOException e) {
+                onErrorListener.accept(e);
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    onErrorListener.accept(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Helper method to accept a byte stream of a file. The calling worker thread waits until the user has decided
+     * whether (and where) to save the file and then receives it.
+     * @param header the decoder positioned after the type field of the header
+     * @param socket the socket the connection was received on
+     * @throws IOException if the rest of the header cannot be read
+     */
+    private void acceptFile(HeaderDecoder header, Socket socket) throws IOException {
+        header.next();
+        String filename = header.fieldAsString();
+        header.next();
+        long size = header.fieldAsLong();
+        TransferEvents.headerParsed(socket.getRemoteSocketAddress(), "FILE", filename, size);
+
+        File file = chooseDestination(filename, size).join();
+        if (file != null) {
+            readFile(file, header, socket, size, null, new TransferOptions());
+        }
+    }
+
+    /**
+     * Helper method to accept a byte stream of a file whose options are negotiated with the sender. If the sender asks
+     * to resume and an earlier transfer of the same file was interrupted, the file is saved to the same destination
+     * without asking the user again, and the sender is told to continue from the offset recorded in the journal.
+     * @param header the decoder positioned after the type field of the header
+     * @param socket the socket the connection was received on, to send the reply through
+     * @throws IOException if the rest of the header cannot be read or the reply cannot be sent
+     */
+    private void acceptNegotiatedFile(HeaderDecoder header, Socket socket) throws IOException {
+        header.next();
+        TransferOptions options = TransferOptions.parse(header.fieldAsString());
+        options.dedup &= chunkStore != null;
+        boolean resume = options.resume;
+        header.next();
+        String filename = header.fieldAsString();
+        header.next();
+        long size = header.fieldAsLong();
+        header.next();
+        String id = header.fieldAsString();
+        TransferEvents.headerParsed(socket.getRemoteSocketAddress(), "XFILE", filename, size);
+
+        if (resume && cancelledReceives.remove(id)) {
+            LOG.log(Level.INFO, "Transfer of " + filename + " was cancelled. Disconnecting.");
+            return;
+        }
+        File file = resume ? interruptedReceives.remove(id) : null;
+        if (file == null) {
+            file = chooseDestination(filename, size).join();
+            if (file == null) return;
+        }
+        TransferJournal journal = resume ? TransferJournal.open(file, id, size) : null;
+        long offset = journal != null ? journal.getReceived() : 0;
+        if (offset > 0) {
+            LOG.log(Level.INFO, String.format("Resuming %s at %d of %d bytes", file.getAbsolutePath(), offset, size));
+        }
+        options.delta &= !options.dedup && offset == 0 && file.isFile() && file.length() > 0;
+        options.verify &= !options.dedup && !options.delta;
+        if (resume) {
+            // a silently dropped connection must fail the transfer so that the journal records it for the sender
+            socket.setSoTimeout(RESUMABLE_READ_TIMEOUT);
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(String.format("%s\0%d\0", options, offset).getBytes());
+        out.flush();
+        readFile(file, header, socket, size, journal, options);
+    }
+
+    /**
+     * Helper method to accept one stripe of a file that is sent over several connections. The first stripe of a
+     * transfer to arrive asks the user where to save the file; the others wait for that decision.
+     * @param header the decoder positioned after the type field of the header
+     * @param socket the socket the connection was received on
+     * @throws IOException if the rest of the header cannot be read
+     */
+    private void acceptPart(HeaderDecoder header, Socket socket) throws IOException {
+        header.next();
+        String id = header.fieldAsString();
+        header.next();
+        String filename = header.fieldAsString();
+        header.next();
+        long size = header.fieldAsLong();
+        header.next();
+        long stripes = header.fieldAsLong();
+        header.next();
+        long offset = header.fieldAsLong();
+        header.next();
+        long length = header.fieldAsLong();
+        if (stripes < 1 || stripes > ServerConfig.MAX_STRIPES) {
+            throw new ProtocolException("Invalid stripe count " + stripes);
+        }
+        if (size < 0 || offset < 0 || length < 0 || offset > size || length > size - offset) {
+            throw new ProtocolException(String.format("Stripe %d+%d exceeds file size %d", offset, length, size));
+        }
+        TransferEvents.headerParsed(socket.getRemoteSocketAddress(), "PART", filename, size);
+
+        StripedReceive striped = stripedReceives.computeIfAbsent(id,
+                k -> new StripedReceive(chooseDestination(filename, size), size, (int) stripes));
+        striped.claim(socket, size, (int) stripes, offset, length);
+        try {
+            Transfer transfer = striped.start(t -> monitor(t, socket.getRemoteSocketAddress()));
+            if (transfer != null) {
+                try (BodyChannel body = new BodyChannel(header, socket.getChannel(), socket.getSoTimeout())) {
+                    readStripe(striped, transfer, body, offset, length);
+                }
+            }
+        } finally {
+            if (striped.connectionFinished(socket)) {
+                stripedReceives.remove(id, striped);
+            }
+        }
+    }
+
+    /**
+     * Fail and forget the striped receives that have gone without activity for
+     * {@link ServerConfig#getStripeTimeout()}, so that a sender that never opens all of its stripes does not leave the
+     * transfer (and its open file) behind.
+     */
+    private void expireStripedReceives() {
+        for (Map.Entry<String, StripedReceive> entry : stripedReceives.entrySet()) {
+            StripedReceive striped = entry.getValue();
+            if (striped.isIdle(config.getStripeTimeout()) && stripedReceives.remove(entry.getKey(), striped)) {
+                LOG.log(Level.WARNING, "Striped transfer " + entry.getKey() + " timed out");
+                striped.expire(config.getStripeTimeout());
+            }
+        }
+    }
+
+    /**
+     * Helper method to accept a batch of files. The whole manifest is read before the user is asked where to save the
+     * batch, so that a malformed manifest is rejected early. The files are received one after the other as a single
+     * transfer of the total size.
+     * @param header the decoder positioned after the type field of the header
+     * @param socket the socket the connection was received on
+     * @throws IOException if the manifest cannot be read or contains a path outside of the batch directory
+     */
+    private void acceptBatch(HeaderDecoder header, Socket socket) throws IOException {
+        header.next();
+        String name = header.fieldAsString();
+        header.next();
+        long count = header.fieldAsLong();
+        header.next();
+        long total = header.fieldAsLong();
+        if (count < 0 || total < 0) {
+            throw new ProtocolException("Invalid batch of " + count + " files and " + total + " bytes");
+        }
+        // the lists grow with the entries actually received, so the announced count cannot force a huge allocation
+        List<String> paths = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        long sum = 0;
+        for (long i = 0; i < count; i++) {
+            header.next();
+            paths.add(header.fieldAsString());
+            header.next();
+            long size = header.fieldAsLong();
+            if (size < 0 || size > total - sum) {
+                throw new ProtocolException("Batch file of " + size + " bytes exceeds the total of " + total);
+            }
+            sizes.add(size);
+            sum += size;
+        }
+        if (sum != total) throw new ProtocolException("Batch files add up to " + sum + " bytes instead of " + total);
+        TransferEvents.headerParsed(socket.getRemoteSocketAddress(), "BATCH", name, total);
+
+        File directory = chooseDestination(name, total).join();
+        if (directory == null) return;
+        Path root = directory.toPath().toAbsolutePath().normalize();
+        List<Path> targets = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            Path target = root.resolve(path).normalize();
+            if (!target.startsWith(root) || target.equals(root)) {
+                throw new ProtocolException("Batch path leaves the batch directory: " + path);
+            }
+            targets.add(target);
+        }
+
+        Transfer transfer = new Transfer(directory, total);
+        monitor(transfer, socket.getRemoteSocketAddress());
+        LOG.log(Level.INFO, String.format("Starting to write %d files to %s...", targets.size(), root));
+        try {
+            Files.createDirectories(root);
+            try (BodyChannel body = new BodyChannel(header, socket.getChannel(), socket.getSoTimeout())) {
+                for (int i = 0; i < targets.size(); i++) {
+                    if (transfer.isCancelled()) return;
+                    Path target = targets.get(i);
+                    Files.createDirectories(target.getParent());
+                    try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        readStream(body, out, transfer, null, 0, sizes.get(i));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            transfer.fail(e);
+            return;
+        }
+        if (transfer.isCancelled()) return;
+        LOG.log(Level.INFO, "Written " + total + " bytes in " + targets.size() + " files to " + root);
+        transfer.complete();
+    }
+
+    /**
+     * Helper method to write one stripe of a file at its offset. Exactly {@code length} bytes are read from the
+     * channel, through a pooled direct buffer that follows the I/O unit of the transfer.
+     * @param striped the shared state of the striped transfer
+     * @param transfer the merged transfer of all stripes
+     * @param source the channel to read the stripe from
+     * @param offset the offset of the stripe in the file
+     * @param length the length (in bytes) of the stripe
+     */
+    private void readStripe(StripedReceive striped, Transfer transfer, ReadableByteChannel source, long offset,
+                            long length) {
+        FileChannel channel = striped.getChannel();
+        ByteBuffer buffer = null;
+        long position = offset;
+        long end = offset + length;
+        try {
+            while (position < end) {
+                if (transfer.isDone()) return;
+                int chunk = (int) Math.min(transfer.chunk(config.getMaxIoSize()), Math.max(length, 1));
+                buffer = buffers.resize(buffer, chunk);
+                buffer.clear();
+                buffer.limit((int) Math.min(chunk, end - position));
+                long start = System.nanoTime();
+                int numBytes = source.read(buffer);
+                long read = System.nanoTime() - start;
+                if (numBytes < 0) {
+                    throw new EOFException(String.format("Connection closed after %d of %d bytes of stripe at %d",
+                            position - offset, length, offset));
+                }
+                transfer.throttle(numBytes);
+                buffer.flip();
+                start = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                long written = System.nanoTime() - start;
+                chunkWritten(numBytes, written);
+                transfer.measure(numBytes, read + written);
+                transfer.addProgress(numBytes);
+                striped.touch();
+            }
+        } catch (IOException e) {
+            transfer.fail(e);
+            return;
+        } finally {
+            if (buffer != null) buffers.release(buffer);
+        }
+        striped.stripeWritten(length);
+    }
+
+    /**
+     * Ask the transfer listener whether to accept an incoming file and where to save it.
+     * @param filename the name of the incoming file as announced by the sender
+     * @param size the size (in bytes) of the incoming file
+     * @return a future that completes with the file to save to, or {@code null} if the file was rejected
+     */
+    CompletableFuture<File> chooseDestination(String filename, long size) {
+        return transferListener.chooseDestination(filename, size);
+    }
+
+    /**
+     * Helper method to save file to local filesystem. The file is received on the calling worker thread, which
+     * returns once the transfer has completed, failed or been cancelled.
+     * Exactly {@code size} bytes are read from the connection; if the sender closes the connection before that, the
+     * transfer fails with an {@link EOFException} instead of silently saving a truncated file. Files of at least
+     * {@link ServerConfig#getMmapThreshold()} bytes are received into memory-mapped windows of the file, unless the
+     * payload is compressed, framed into checksummed chunks, deduplicated or a delta.
+     * If a journal is given, the file is written from the offset recorded in the journal, and the journal is updated
+     * as the file is received and when the connection fails, so that the sender can resume later.
+     * A delta is rebuilt into {@link Delta#rebuilt(File)}, which replaces the file only once it is complete and
+     * verified; if the transfer fails or is cancelled, the file is left untouched and a resumed transfer starts over.
+     * @param file the file (selected by user) to save to
+     * @param header the decoder positioned at the payload, starting at the offset of the journal
+     * @param socket the socket to read the payload from
+     * @param size the size (in bytes) of the file
+     * @param journal the journal of a resumable transfer, or {@code null}
+     * @param options the options the payload is sent with
+     */
+    private void readFile(final File file, HeaderDecoder header, Socket socket, long size, TransferJournal journal,
+                          TransferOptions options) {
+        Codec codec = options.codec;
+        long offset = journal != null ? journal.getReceived() : 0;
+        Transfer transfer = new Transfer(file, size);
+        transfer.addProgress(offset);
+        monitor(transfer, socket.getRemoteSocketAddress());
+
+        boolean mapped = codec == null && !options.verify && !options.dedup && !options.delta
+                && size - offset >= config.getMmapThreshold() && socket.getChannel() != null;
+        LOG.log(Level.INFO, mapped ? "Starting to write file through memory-mapped windows..."
+                : "Starting to write file...");
+        Path target = options.delta ? Delta.rebuilt(file) : file.toPath();
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE)) {
+            out.truncate(offset);
+            try {
+                if (mapped) {
+                    try (BodyChannel body = new BodyChannel(header, socket.getChannel(), socket.getSoTimeout())) {
+                        readMapped(body, out, transfer, journal, offset, size);
+                    }
+                } else if (options.delta) {
+                    readDelta(header.body(), socket.getOutputStream(), codec, file.toPath(), out, transfer, size);
+                } else if (options.dedup) {
+                    readDeduplicated(header, socket.getOutputStream(), codec, out, transfer, journal, offset, size);
+                } else if (options.verify) {
+                    readVerified(header.body(), socket.getOutputStream(), codec, out, transfer, journal, offset, size);
+                } else if (codec != null) {
+                    try (InputStream body = codec.decompress(header.body())) {
+                        readStream(Channels.newChannel(body), out, transfer, journal, offset, size);
+                        // consume the end of the compressed stream, so the sender can finish writing it
+                        if (!transfer.isCancelled() && body.read() >= 0) {
+                            throw new ProtocolException("Compressed payload is longer than " + size + " bytes");
+                        }
+                    }
+                } else {
+                    try (BodyChannel body = new BodyChannel(header, socket.getChannel(), socket.getSoTimeout())) {
+                        readStream(body, out, transfer, journal, offset, size);
+                    }
+                }
+            } catch (IOException e) {
+                long counter = transfer.getBytesTransferred();
+                if (mapped) {
+                    try {
+                        out.truncate(counter);
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+                if (journal != null && (counter > offset || options.delta)) {
+                    // a delta starts over against the untouched file, but the retry must still find its destination
+                    journal.record(options.delta ? offset : counter);
+                    interruptedReceives.put(journal.getId(), file);
+                }
+                throw e;
+            }
+            if (transfer.isCancelled() && mapped) {
+                out.truncate(transfer.getBytesTransferred());
+            }
+            if (journal != null) {
+                journal.delete();
+                if (transfer.isCancelled()) cancelledReceives.add(journal.getId());
+            }
+        } catch (IOException e) {
+            // clean up before failing, so that whoever waits for the transfer finds no leftover rebuilt file
+            discardRebuilt(target, options);
+            transfer.fail(e);
+            return;
+        }
+        if (options.delta && !transfer.isCancelled()) {
+            try {
+                Files.move(target, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                discardRebuilt(target, options);
+                transfer.fail(e);
+                return;
+            }
+        }
+        discardRebuilt(target, options);
+        if (transfer.isDone()) return;
+        LOG.log(Level.INFO, "Written " + size + " bytes to " + file.getAbsolutePath());
+        transfer.complete();
+    }
+
+    private static void discardRebuilt(Path target, TransferOptions options) {
+        if (!options.delta) return;
+        try {
+            Files.deleteIfExists(target);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not delete " + target + ": " + e);
+        }
+    }
+
+    /**
+     * Helper method to receive a file through pooled direct buffers. Exactly {@code size - offset} bytes are read from
+     * the channel with blocking reads, and each buffer is as large as the I/O unit of the transfer at the time. Unless
+     * the file fits into one buffer or write-behind is disabled, the buffers are written by a {@link WriteBehind}
+     * writer while the next ones are being received, and progress is reported once a buffer is on disk, so that the
+     * journal never records bytes that were not written.
+     * @param source the channel to read the file from
+     * @param out the file to write to
+     * @param transfer the transfer to report progress to
+     * @param journal the journal of a resumable transfer, or {@code null}
+     * @param offset the offset to start writing at
+     * @param size the size (in bytes) of the file
+     * @throws IOException if the channel cannot be read or the file cannot be written
+     */
+    private void readStream(ReadableByteChannel source, FileChannel out, Transfer transfer, TransferJournal journal,
+                            long offset, long size) throws IOException {
+        int depth = config.getWriteBehindDepth();
+        if (depth > 0 && size - offset > RECEIVE_CHUNK) {
+            try (WriteBehind writer = new WriteBehind(out, offset, depth, RECEIVE_CHUNK, buffers, diskWriters,
+                    (numBytes, nanos) -> {
+                        chunkWritten(numBytes, nanos);
+                        received(transfer, journal, numBytes);
+                    }, metrics::diskStalled)) {
+                long counter = offset;
+                while (counter < size) {
+                    if (transfer.isCancelled()) return;
+                    ByteBuffer buffer = writer.next(transfer.chunk(config.getMaxIoSize()));
+                    int length = (int) Math.min(buffer.capacity(), size - counter);
+                    long nanos = 0;
+                    // fill the whole buffer, so that the disk sees few large writes
+                    while (buffer.position() < length) {
+                        buffer.limit(buffer.position() + transfer.chunk(length - buffer.position()));
+                        long start = System.nanoTime();
+                        int numBytes = source.read(buffer);
+                        nanos += System.nanoTime() - start;
+                        if (numBytes < 0) {
+                            counter += buffer.position();
+                            writer.submit(buffer);
+                            throw new EOFException(String.format("Connection closed after %d of %d bytes", counter,
+                                    size));
+                        }
+                        transfer.throttle(numBytes);
+                    }
+                    transfer.measure(length, nanos);
+                    counter += length;
+                    writer.submit(buffer);
+                }
+            }
+            return;
+        }
+        ByteBuffer buffer = null;
+        try {
+            long counter = offset;
+            out.position(offset);
+            while (counter < size) {
+                if (transfer.isCancelled()) return;
+                int chunk = (int) Math.min(transfer.chunk(config.getMaxIoSize()), Math.max(size - offset, 1));
+                buffer = buffers.resize(buffer, chunk);
+                buffer.clear();
+                buffer.limit((int) Math.min(chunk, size - counter));
+                long start = System.nanoTime();
+                int numBytes = source.read(buffer);
+                long read = System.nanoTime() - start;
+                if (numBytes < 0) {
+                    throw new EOFException(String.format("Connection closed after %d of %d bytes", counter, size));
+                }
+                transfer.throttle(numBytes);
+                buffer.flip();
+                start = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                long written = System.nanoTime() - start;
+                chunkWritten(numBytes, written);
+                transfer.measure(numBytes, read + written);
+                counter += numBytes;
+                received(transfer, journal, numBytes);
+            }
+        } finally {
+            if (buffer != null) buffers.release(buffer);
+        }
+    }
+
+    /**
+     * Helper method to receive a file as a delta against its previous version (the basis). The signatures of the
+     * basis are sent to the sender, and the file is then rebuilt in order from the literal data and the blocks of the
+     * basis the sender refers to, and checked against the MD5 the sender computed. The rebuilt file is not journaled,
+     * since it is only of use once complete.
+     * @param stream the stream to read the instructions from
+     * @param reply the stream to send the signatures through
+     * @param codec the codec the instructions are compressed with, or {@code null}
+     * @param basisPath the previous version of the file
+     * @param out the file to rebuild into
+     * @param transfer the transfer to report progress to
+     * @param size the size (in bytes) of the file
+     * @throws IOException if the connection fails, the instructions are invalid or the file cannot be written
+     */
+    private static void readDelta(InputStream stream, OutputStream reply, Codec codec, Path basisPath, FileChannel out,
+                                  Transfer transfer, long size) throws IOException {
+        try (FileChannel basis = FileChannel.open(basisPath, StandardOpenOption.READ)) {
+            Delta.writeSignatures(basis, reply);
+            long basisSize = basis.size();
+            int blockSize = Delta.blockSize(basisSize);
+            long blocks = (basisSize + blockSize - 1) / blockSize;
+            MessageDigest whole = Delta.md5();
+            byte[] buffer = new byte[Math.max(Delta.MAX_LITERAL, blockSize)];
+            InputStream shielded = ChunkFrames.shield(stream);
+            try (DataInputStream in = new DataInputStream(codec != null ? codec.decompress(shielded) : shielded)) {
+                long position = 0;
+                while (true) {
+                    if (transfer.isCancelled()) return;
+                    byte instruction = in.readByte();
+                    if (instruction == Delta.LITERAL) {
+                        int length = in.readInt();
+                        if (length <= 0 || length > Delta.MAX_LITERAL || position + length > size) {
+                            throw new ProtocolException("Invalid literal of " + length + " bytes at " + position);
+                        }
+                        in.readFully(buffer, 0, length);
+                        transfer.throttle(length);
+                        position += writeDelta(buffer, length, whole, out, position, transfer);
+                    } else if (instruction == Delta.COPY) {
+                        long block = in.readInt();
+                        long count = in.readInt();
+                        if (block < 0 || count <= 0 || block + count > blocks) {
+                            throw new ProtocolException("Invalid copy of " + count + " blocks from " + block);
+                        }
+                        for (long end = block + count; block < end; block++) {
+                            int length = (int) Math.min(blockSize, basisSize - block * blockSize);
+                            if (position + length > size) {
+                                throw new ProtocolException("Delta exceeds " + size + " bytes");
+                            }
+                            Delta.readFully(basis, block * blockSize, buffer, length);
+                            position += writeDelta(buffer, length, whole, out, position, transfer);
+                        }
+                    } else if (instruction == Delta.END) {
+                        byte[] expected = new byte[16];
+                        in.readFully(expected);
+                        if (position != size) {
+                            throw new ProtocolException("Delta ended after " + position + " of " + size + " bytes");
+                        }
+                        if (!MessageDigest.isEqual(expected, whole.digest())) {
+                            throw new IOException("File does not match the sender's after applying the delta");
+                        }
+                        if (codec != null && in.read() >= 0) {
+                            throw new ProtocolException("Compressed delta continues after its end");
+                        }
+                        return;
+                    } else {
+                        throw new ProtocolException("Unknown delta instruction " + instruction);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int writeDelta(byte[] buffer, int length, MessageDigest whole, FileChannel out, long position,
+                                  Transfer transfer) throws IOException {
+        whole.update(buffer, 0, length);
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, length);
+        while (wrapped.hasRemaining()) {
+            out.write(wrapped, position + wrapped.position());
+        }
+        transfer.addProgress(length);
+        return length;
+    }
+
+    /**
+     * Helper method to receive a file split into content-defined chunks. The chunks already in the chunk store are
+     * copied from it, the others are requested from the sender, verified against their hash and added to the store.
+     * The file is written in order, so progress and the journal advance as usual.
+     * @param header the decoder positioned at the chunk list
+     * @param reply the stream to request the missing chunks through
+     * @param codec the codec the missing chunks are compressed with, or {@code null}
+     * @param out the file to write to
+     * @param transfer the transfer to report progress to
+     * @param journal the journal of a resumable transfer, or {@code null}
+     * @param offset the offset to start writing at
+     * @param size the size (in bytes) of the file
+     * @throws IOException if the connection fails, a chunk does not match its hash or the file cannot be written
+     */
+    private void readDeduplicated(HeaderDecoder header, OutputStream reply, Codec codec, FileChannel out,
+                                  Transfer transfer, TransferJournal journal, long offset, long size)
+            throws IOException {
+        header.next();
+        long count = header.fieldAsLong();
+        // every chunk but the last is at least MIN_CHUNK long
+        if (count < 0 || count > (size - offset) / Chunker.MIN_CHUNK + 1) {
+            throw new ProtocolException("Invalid count of " + count + " chunks for " + (size - offset) + " bytes");
+        }
+        // the lists grow with the entries actually received, so the announced count cannot force a huge allocation
+        List<String> hashes = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        long total = 0;
+        for (long i = 0; i < count; i++) {
+            header.next();
+            hashes.add(header.fieldAsString());
+            header.next();
+            long length = header.fieldAsLong();
+            if (length <= 0 || length > Chunker.MAX_CHUNK || length > size - offset - total) {
+                throw new ProtocolException("Invalid chunk length " + length);
+            }
+            lengths.add((int) length);
+            total += length;
+        }
+        if (total != size - offset) {
+            throw new ProtocolException("Chunks add up to " + total + " bytes instead of " + (size - offset));
+        }
+
+        Set<String> present = chunkStore.acquire(hashes);
+        try {
+            StringBuilder missing = new StringBuilder();
+            int missingCount = 0;
+            for (int i = 0; i < lengths.size(); i++) {
+                if (!present.contains(hashes.get(i))) {
+                    missing.append(i).append('\0');
+                    missingCount++;
+                }
+            }
+            reply.write((missingCount + "\0" + missing).getBytes());
+            reply.flush();
+            LOG.log(Level.INFO, String.format("%d of %d chunks found in the chunk store", lengths.size() - missingCount,
+                    lengths.size()));
+
+            MessageDigest digest = Chunker.sha256();
+            byte[] buffer = new byte[Chunker.MAX_CHUNK];
+            InputStream shielded = ChunkFrames.shield(header.body());
+            try (InputStream in = codec != null ? codec.decompress(shielded) : shielded) {
+                long position = offset;
+                for (int i = 0; i < lengths.size(); i++) {
+                    if (transfer.isCancelled()) return;
+                    String hash = hashes.get(i);
+                    int length = lengths.get(i);
+                    if (present.contains(hash)) {
+                        chunkStore.copyTo(hash, out, position);
+                    } else {
+                        for (int read = 0; read < length; ) {
+                            int numBytes = in.read(buffer, read, length - read);
+                            if (numBytes < 0) {
+                                throw new EOFException(String.format("Connection closed after %d of %d bytes",
+                                        position + read, size));
+                            }
+                            read += numBytes;
+                        }
+                        transfer.throttle(length);
+                        digest.update(buffer, 0, length);
+                        if (!Chunker.hex(digest.digest()).equals(hash)) {
+                            throw new IOException("Chunk at " + position + " does not match its hash");
+                        }
+                        ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, length);
+                        while (wrapped.hasRemaining()) {
+                            out.write(wrapped, position + wrapped.position());
+                        }
+                        chunkStore.put(hash, buffer, length);
+                    }
+                    position += length;
+                    received(transfer, journal, length);
+                }
+                if (codec != null && in.read() >= 0) {
+                    throw new ProtocolException("Compressed chunks are longer than " + size + " bytes");
+                }
+            }
+        } finally {
+            chunkStore.release(present);
+        }
+    }
+
+    /**
+     * Helper method to receive a file framed into checksummed chunks. Each chunk is verified as it arrives and written
+     * at its position in the file; after each round of frames the sender is told which chunks were corrupted and sends
+     * them again, up to {@link #REPAIR_ROUNDS} times. Progress and the journal only advance over the chunks before the
+     * first corrupted one, so that a resumed transfer never skips a corrupted chunk.
+     * @param stream the stream to read the frames from
+     * @param reply the stream to report corrupted chunks to
+     * @param codec the codec each round of frames is compressed with, or {@code null}
+     * @param out the file to write to
+     * @param transfer the transfer to report progress to
+     * @param journal the journal of a resumable transfer, or {@code null}
+     * @param offset the offset to start writing at
+     * @param size the size (in bytes) of the file
+     * @throws IOException if the stream cannot be read, the file cannot be written or chunks stay corrupted
+     */
+    private static void readVerified(InputStream stream, OutputStream reply, Codec codec, FileChannel out,
+                                     Transfer transfer, TransferJournal journal, long offset, long size)
+            throws IOException {
+        long count = ChunkFrames.count(offset, size);
+        byte[] buffer = new byte[(int) Math.min(ChunkFrames.CHUNK_SIZE, size - offset) + 4];
+        Checksum checksum = Crc32c.create();
+        TreeSet<Long> corrupted = new TreeSet<>();
+        long verified = offset;
+        PrimitiveIterator.OfLong chunks = LongStream.range(0, count).iterator();
+        for (int round = 0; ; round++) {
+            long sequential = 0;
+            InputStream shielded = ChunkFrames.shield(stream);
+            try (InputStream in = codec != null ? codec.decompress(shielded) : shielded) {
+                while (chunks.hasNext()) {
+                    if (transfer.isCancelled()) return;
+                    long index = chunks.nextLong();
+                    long start = ChunkFrames.start(offset, index);
+                    int length = ChunkFrames.length(offset, size, index);
+                    boolean intact = ChunkFrames.read(in, buffer, length, checksum);
+                    transfer.throttle(length);
+                    if (intact) {
+                        ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, length);
+                        while (wrapped.hasRemaining()) {
+                            out.write(wrapped, start + wrapped.position());
+                        }
+                        corrupted.remove(index);
+                    } else {
+                        corrupted.add(index);
+                    }
+                    if (round == 0) sequential = index + 1;
+                    long prefix = corrupted.isEmpty() ? (round == 0 ? sequential : count) : corrupted.first();
+                    long contiguous = Math.min(size, ChunkFrames.start(offset, prefix));
+                    if (contiguous > verified) {
+                        received(transfer, journal, contiguous - verified);
+                        verified = contiguous;
+                    }
+                }
+                if (codec != null && in.read() >= 0) {
+                    throw new ProtocolException("Compressed round of chunks is longer than announced");
+                }
+            }
+            if (!corrupted.isEmpty() && round == REPAIR_ROUNDS) {
+                throw new IOException(String.format("%d chunks still corrupted after %d repair rounds",
+                        corrupted.size(), REPAIR_ROUNDS));
+            }
+            StringBuilder answer = new StringBuilder().append(corrupted.size()).append('\0');
+            for (long index : corrupted) answer.append(index).append('\0');
+            reply.write(answer.toString().getBytes());
+            reply.flush();
+            if (corrupted.isEmpty()) return;
+            LOG.log(Level.WARNING, String.format("%d corrupted chunks, asking the sender for them again",
+                    corrupted.size()));
+            chunks = new ArrayList<>(corrupted).stream().mapToLong(Long::longValue).iterator();
+        }
+    }
+
+    /**
+     * Helper method to receive a file into memory-mapped windows. The file is first extended to its full size, then
+     * mapped {@link #MAP_WINDOW} bytes at a time, and the socket is read straight into the mapped pages. The payload is
+     * therefore copied once, by the kernel, and each read fills as much of the window as the socket has available.
+     * @param body the payload of the connection
+     * @param out the file to write to, opened for reading and writing
+     * @param transfer the transfer to report progress to
+     * @param journal the journal of a resumable transfer, or {@code null}
+     * @param offset the offset to start writing at
+     * @param size the size (in bytes) of the file
+     * @throws IOException if the channel cannot be read, the read times out or the file cannot be mapped
+     */
+    private static void readMapped(BodyChannel body, FileChannel out, Transfer transfer, TransferJournal journal,
+                                   long offset, long size) throws IOException {
+        out.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        long position = offset;
+        while (position < size) {
+            MappedByteBuffer window = out.map(FileChannel.MapMode.READ_WRITE, position,
+                    Math.min(MAP_WINDOW, size - position));
+            while (window.position() < window.capacity()) {
+                if (transfer.isCancelled()) return;
+                int chunk = transfer.chunk((int) MAP_WINDOW);
+                window.limit(Math.min(window.capacity(), window.position() + chunk));
+                long start = System.nanoTime();
+                int numBytes = body.read(window);
+                if (numBytes < 0) {
+                    throw new EOFException(String.format("Connection closed after %d of %d bytes",
+                            position + window.position(), size));
+                }
+                transfer.measure(numBytes, System.nanoTime() - start);
+                received(transfer, journal, numBytes);
+                transfer.throttle(numBytes);
+            }
+            position += window.capacity();
+        }
+    }
+
+    private static void received(Transfer transfer, TransferJournal journal, long numBytes) throws IOException {
+        transfer.addProgress(numBytes);
+        if (journal != null) journal.update(transfer.getBytesTransferred());
+    }
+
+    /**
+     * Hand an incoming transfer to the transfer listener, hold it to the receive limits, count it in the metrics and
+     * record its start and end as {@link TransferEvents}. Once the transfer has succeeded the code is renewed;
+     * failures (other than cancellation) are routed to the error listener.
+     * @param transfer the transfer to monitor
+     * @param peer the remote address of the sender
+     */
+    void monitor(Transfer transfer, SocketAddress peer) {
+        limit(transfer, peer instanceof InetSocketAddress && ((InetSocketAddress) peer).getAddress() != null
+                ? ((InetSocketAddress) peer).getAddress().getHostAddress() : String.valueOf(peer), true);
+        metrics.track(transfer);
+        long offset = transfer.getBytesTransferred();
+        String path = transfer.getFile().getPath();
+        TransferEvents.transferStarted(peer, true, path, transfer.getSize(), offset);
+        transferListener.transferStarted(transfer);
+        transfer.getCompletion().whenComplete((numBytes, e) -> {
+            TransferEvents.transferEnded(peer, true, path, transfer.getSize(), transfer.getBytesTransferred() - offset,
+                    transfer.getElapsedNanos(), e, transfer.isCancelled());
+            if (e == null) {
+                renewCode();
+            } else if (!transfer.isCancelled()) {
+                onErrorListener.accept(e);
+            }
+        });
+    }
+
+    /**
+     * Hold a transfer to the limits of this server: the limit of all sends or receives, the limit per peer and the
+     * initial limit of each transfer. The transfer also adapts its I/O unit within the bounds of the configuration.
+     * @param transfer the transfer to limit
+     * @param peer the address (or host name) of the remote host
+     * @param incoming whether the transfer is received
+     */
+    private void limit(Transfer transfer, String peer, boolean incoming) {
+        RateLimiter perPeer = peerLimiters.computeIfAbsent((incoming ? "from " : "to ") + peer,
+                k -> new RateLimiter(peerLimit));
+        transfer.setSharedLimiters(incoming ? receiveLimiter : sendLimiter, perPeer);
+        transfer.getLimiter().setRate(config.getTransferLimit());
+        transfer.setTuner(new IoSizeTuner(config.getMinIoSize(), config.getMaxIoSize()));
+    }
+
+    /**
+     * Helper method to create an outgoing transfer held to the send limits.
+     * @param file the file (or the root of the batch) to be sent
+     * @param size the size (in bytes) of the payload
+     * @param host the remote host the transfer goes to
+     * @return the transfer
+     */
+    private Transfer outgoing(File file, long size, String host) {
+        Transfer transfer = new Transfer(file, size);
+        limit(transfer, host, false);
+        return transfer;
+    }
+
+    /**
+     * Convert the number of bytes to human readable format. For example, 1126 bytes will be converted to the string
+     * {@code 1.1 KiB}
+     * @param bytes the number of bytes to display
+     * @param si whether to use standard international units (base 2) (kibibyte, mebibyte, gibibyte, etc.) or colloquial
+     *           ones (base 10) (kilobyte, megabyte, gigabyte, etc.)
+     * @return a human readable string
+     */
+    public static String humanReadableByteCount(long bytes, boolean si) {
+        int unit = si ? 1000 : 1024;
+        if (bytes < unit) return bytes + " B";
+        int exp = (int) (Math.log(bytes) / Math.log(unit));
+        String pre = (si ? "kMGTPE" : "KMGTPE").charAt(exp-1) + (si ? "" : "i");
+        return String.format("%.1f %sB", bytes / Math.pow(unit, exp), pre);
+    }
+
+    /**
+     * Helper method to read a stream of text.
+     * @param in the stream to read the text from
+     */
+    private void readText(InputStream in) {
+        Scanner s = new Scanner(in);
+        s.useDelimiter("\0");
+        displayText(s.hasNext() ? s.next() : "");
+    }
+
+    /**
+     * Helper method to hand the text read from the stream to the transfer listener.
+     * @param text text to be displayed
+     */
+    void displayText(String text) {
+        transferListener.textReceived(text);
+    }
+
+    private void disconnect(Socket socket) {
+        try {
+            LOG.log(Level.WARNING, "Disconnecting from " + socket.getInetAddress());
+            socket.close();
+        } catch (IOException e) {
+            onErrorListener.accept(e);
+        }
+    }
+
+    /**
+     * Send a text to the specified host with a specified code.
+     * @param host the remote host (also running JDrop) to send the text to
+     * @param code the code for verification
+     * @param text the text to be sent
+     */
+    public void sendText(String host, String code, String text) {
+        try {
+            writeText(host, code, text);
+        } catch (IOException e) {
+            onErrorListener.accept(e);
+        }
+    }
+
+    /**
+     * Queue a text to be sent to the specified host with a specified code, and return without waiting for it. See
+     * {@link #submitFiles(String, String, List)} for how submissions are queued.
+     * @param host the remote host (also running JDrop) to send the text to
+     * @param code the code for verification
+     * @param text the text to be sent
+     * @return a future that completes once the text is sent, or completes exceptionally if it cannot be sent (in
+     * which case the error listener is called as well); cancelling it before the text is sent drops the text
+     */
+    public CompletableFuture<Void> submitText(String host, String code, String text) {
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        enqueue(host, text.length(), true, completion, () -> {
+            try {
+                writeText(host, code, text);
+                completion.complete(null);
+            } catch (IOException e) {
+                completion.completeExceptionally(e);
+                onErrorListener.accept(e);
+            }
+        });
+        return completion;
+    }
+
+    private void writeText(String host, String code, String text) throws IOException {
+        LOG.log(Level.INFO, "Connecting to " + host + ":" + DEFAULT_PORT);
+        try (Socket socket = new Socket(host, DEFAULT_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            byte[] bytes = String.format("%s\0TEXT\0%s\0", code, text).getBytes();
+            out.write(bytes);
+            out.close();
+            metrics.sent(bytes.length);
+            LOG.log(Level.INFO, "Written " + text.length() + " characters of text to socket OutputStream");
+        }
+    }
+
+    /**
+     * Send a file to the specified host with a specified code. The socket is opened through a {@link SocketChannel} so
+     * that the payload can be sent with
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} (i.e. {@code sendfile} on
+     * Linux) without copying it through user space. Large files may be split across several parallel connections, see
+     * {@link ServerConfig#setStripes(int)}. The outgoing transfer is handed to
+     * {@link TransferListener#sendStarted(Transfer)} to observe its progress, and its start and end are recorded as
+     * {@link TransferEvents}.
+     * @param host the remote host (also running JDrop) to send the text to
+     * @param code the code for verification
+     * @param file the file to be sent
+     */
+    public void sendFile(String host, String code, File file) {
+        sendFile(host, code, file, outgoing(file, file.length(), host));
+    }
+
+    /**
+     * Queue a file to be sent to the specified host with a specified code, and return without waiting for it. See
+     * {@link #submitFiles(String, String, List)} for how submissions are queued.
+     * @param host the remote host (also running JDrop) to send the file to
+     * @param code the code for verification
+     * @param file the file to be sent
+     * @return the outgoing transfer, to observe its progress and completion or to cancel it
+     */
+    public Transfer submitFile(String host, String code, File file) {
+        Transfer transfer = outgoing(file, file.length(), host);
+        enqueue(host, transfer.getSize(), false, transfer.getCompletion(), () -> sendFile(host, code, file, transfer));
+        return transfer;
+    }
+
+    /**
+     * Helper method to send a file as the given transfer. Cancelling the transfer closes its connections, which ends
+     * the send without reporting an error.
+     * @param host the remote host (also running JDrop) to send the file to
+     * @param code the code for verification
+     * @param file the file to be sent
+     * @param transfer the transfer to report progress to and to complete
+     */
+    private void sendFile(String host, String code, File file, Transfer transfer) {
+        SocketAddress peer = new InetSocketAddress(host, DEFAULT_PORT);
+        long size = transfer.getSize();
+        TransferEvents.transferStarted(peer, false, file.getPath(), size, 0);
+        transferListener.sendStarted(transfer);
+        Throwable failure = null;
+        try {
+            int stripes = getStripes(host, size);
+            if (stripes > 1) {
+                sendStriped(host, code, file, stripes, transfer);
+            } else if (config.isResume() || config.getCodec() != null || config.isVerify() || config.isDedup()
+                    || config.isDelta()) {
+                sendNegotiated(host, code, file, transfer);
+            } else {
+                sendPlain(host, code, file, transfer);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (transfer.isCancelled()) {
+                LOG.log(Level.INFO, "Sending " + file.getName() + " was cancelled");
+            } else {
+                failure = e;
+                onErrorListener.accept(e);
+            }
+        }
+        TransferEvents.transferEnded(peer, false, file.getPath(), size, transfer.getBytesTransferred(),
+                transfer.getElapsedNanos(), failure, transfer.isCancelled());
+        if (failure == null) {
+            transfer.complete();
+        } else {
+            transfer.fail(failure);
+        }
+    }
+
+    /**
+     * Helper method to send a file with the "FILE" type.
+     * @param host the remote host (also running JDrop) to send the file to
+     * @param code the code for verification
+     * @param file the file to be sent
+     * @param transfer the transfer to report progress to
+     * @throws IOException if the file cannot be read or the connection fails
+     */
+    private void sendPlain(String host, String code, File file, Transfer transfer) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            LOG.log(Level.INFO, "Connecting to " + host + ":" + DEFAULT_PORT);
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, DEFAULT_PORT))) {
+                closeOnCancel(transfer, channel);
+                writeHeader(channel, String.format("%s\0FILE\0%s\0%d\0", code, file.getName(), file.length()));
+                long numBytes = writeFile(in, channel, transfer);
+                metrics.sent(numBytes);
+                LOG.log(Level.INFO, "Written " + numBytes + " bytes to socket");
+            }
+        }
+    }
+
+    /**
+     * Send several files, or whole directory trees, over a single "BATCH" connection. The files are listed in a
+     * manifest up front and then sent back to back: large files with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, and files smaller than {@link #PACK_LIMIT}
+     * packed into a shared buffer so that a tree of many small files is sent in few large writes. A single regular file
+     * is sent with {@link #sendFile(String, String, File)} instead. Empty directories are not recreated. The batch is
+     * handed to {@link TransferListener#sendStarted(Transfer)} as one transfer of the total size.
+     * @param host the remote host (also running JDrop) to send the files to
+     * @param code the code for verification
+     * @param files the files and directories to be sent; a single directory is sent as the batch itself, several
+     *              files and directories are sent as entries of a batch named after the directory of the first one
+     */
+    public void sendFiles(String host, String code, List<File> files) {
+        if (files.isEmpty()) return;
+        if (files.size() == 1 && files.get(0).isFile()) {
+            sendFile(host, code, files.get(0));
+            return;
+        }
+        Batch batch;
+        try {
+            batch = new Batch(files);
+        } catch (IOException e) {
+            onErrorListener.accept(e);
+            return;
+        }
+        sendBatch(host, code, batch, outgoing(batch.root, batch.total, host));
+    }
+
+    /**
+     * Queue files, or whole directory trees, to be sent to the specified host with a specified code, and return without
+     * waiting for them. Submissions are run by a {@link SendScheduler}, which sends texts and small files ahead of
+     * large ones and shares the senders between hosts, see {@link ServerConfig#setMaxSends(int)} and
+     * {@link ServerConfig#setMaxSendsPerHost(int)}. Up to {@link ServerConfig#getSendQueue()} submissions wait for a
+     * free sender; beyond that, the returned transfer fails with a {@link RejectedExecutionException}. The files are
+     * sent as {@link #sendFiles(String, String, List)} would, but directories are listed before this method returns so
+     * that the transfer knows its total size. Errors are reported to the error listener as well as through the
+     * transfer. Cancelling the transfer drops it from the queue, or aborts it while it is being sent.
+     * @param host the remote host (also running JDrop) to send the files to
+     * @param code the code for verification
+     * @param files the files and directories to be sent, must not be empty
+     * @return the outgoing transfer, to observe its progress and completion or to cancel it
+     */
+    public Transfer submitFiles(String host, String code, List<File> files) {
+        if (files.isEmpty()) throw new IllegalArgumentException("No files to send");
+        if (files.size() == 1 && files.get(0).isFile()) return submitFile(host, code, files.get(0));
+        Batch batch;
+        try {
+            batch = new Batch(files);
+        } catch (IOException e) {
+            onErrorListener.accept(e);
+            Transfer failed = new Transfer(files.get(0), 0);
+            failed.fail(e);
+            return failed;
+        }
+        Transfer transfer = outgoing(batch.root, batch.total, host);
+        enqueue(host, batch.total, false, transfer.getCompletion(), () -> sendBatch(host, code, batch, transfer));
+        return transfer;
+    }
+
+    /**
+     * Helper method to send a listed batch as the given transfer.
+     * @param host the remote host (also running JDrop) to send the files to
+     * @param code the code for verification
+     * @param batch the files to be sent
+     * @param transfer the transfer to report progress to and to complete
+     */
+    private void sendBatch(String host, String code, Batch batch, Transfer transfer) {
+        transferListener.sendStarted(transfer);
+        try {
+            LOG.log(Level.INFO, "Connecting to " + host + ":" + DEFAULT_PORT);
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, DEFAULT_PORT))) {
+                closeOnCancel(transfer, channel);
+                writeHeader(channel, String.format("%s\0BATCH\0%s\0%d\0%d\0%s",
+                        code, batch.name, batch.paths.size(), batch.total, batch.manifest));
+                ByteBuffer pack = buffers.acquire(RECEIVE_CHUNK);
+                try {
+                    for (int i = 0; i < batch.paths.size(); i++) {
+                        Path path = batch.paths.get(i);
+                        long size = batch.sizes.get(i);
+                        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                            if (size < PACK_LIMIT) {
+                                if (pack.remaining() < size) flush(pack, channel, transfer);
+                                // a file that grew since the manifest was written is cut at its announced size
+                                pack.limit(pack.position() + (int) size);
+                                while (pack.hasRemaining()) {
+                                    if (in.read(pack) < 0) throw new EOFException(path + " shrank while being sent");
+                                }
+                                pack.limit(pack.capacity());
+                            } else {
+                                flush(pack, channel, transfer);
+                                if (transfer(in, 0, size, channel, transfer) < size) {
+                                    throw new EOFException(path + " shrank while being sent");
+                                }
+                            }
+                        }
+                    }
+                    flush(pack, channel, transfer);
+                } finally {
+                    buffers.release(pack);
+                }
+            }
+            metrics.sent(batch.total);
+            LOG.log(Level.INFO, "Written " + batch.total + " bytes in " + batch.paths.size() + " files to socket");
+            transfer.complete();
+        } catch (IOException e) {
+            if (transfer.isCancelled()) {
+                LOG.log(Level.INFO, "Sending " + batch.name + " was cancelled");
+            } else {
+                transfer.fail(e);
+                onErrorListener.accept(e);
+            }
+        }
+    }
+
+    private static void flush(ByteBuffer pack, WritableByteChannel channel, Transfer transfer) throws IOException {
+        pack.flip();
+        while (pack.hasRemaining()) {
+            channel.write(pack);
+        }
+        transfer.addProgress(pack.limit());
+        transfer.throttle(pack.limit());
+        pack.clear();
+    }
+
+    /**
+     * Send a file with the "XFILE" type. If resuming is enabled and the connection fails during the transfer, the
+     * sender reconnects up to {@link ServerConfig#getRetries()} times and continues from the offset the receiver
+     * reports, waiting a little longer before each attempt. If a codec is configured, it is offered unless a sample of
+     * the file looks already compressed. If verification, deduplication or deltas are enabled, these are offered as
+     * well. A file the receiver rejects is not retried.
+     * @param host the remote host (also running JDrop) to send the file to
+     * @param code the code for verification
+     * @param file the file to be sent
+     * @param transfer the transfer to report progress to
+     * @throws TransferRejectedException if the receiver rejected the file
+     * @throws IOException if the file cannot be read or the last attempt fails
+     */
+    private void sendNegotiated(String host, String code, File file, Transfer transfer) throws IOException {
+        TransferOptions options = new TransferOptions();
+        options.resume = config.isResume();
+        options.verify = config.isVerify();
+        options.dedup = config.isDedup();
+        options.delta = config.isDelta();
+        Codec codec = config.getCodec() != null ? Codecs.get(config.getCodec()) : null;
+        if (codec != null) {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (Codecs.looksCompressible(in, 0, in.size())) {
+                    options.codec = codec;
+                } else if (in.size() > 0) {
+                    LOG.log(Level.INFO, "Sending " + file.getName() + " uncompressed, its content looks compressed");
+                }
+            }
+        }
+        String header = String.format("%s\0XFILE\0%s\0%s\0%d\0%s\0",
+                code, options, file.getName(), file.length(), fileId(file));
+        int retries = config.isResume() ? config.getRetries() : 0;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                sendAttempt(host, header, file, transfer);
+                return;
+            } catch (IOException e) {
+                // only the first connection is closed unanswered when the user declines; later ones were dropped
+                boolean rejected = e instanceof TransferRejectedException && attempt == 0;
+                if (attempt >= retries || transfer.isCancelled() || rejected) throw e;
+                LOG.log(Level.WARNING, String.format("Transfer of %s interrupted (%s), reconnecting (%d of %d)",
+                        file.getName(), e.getMessage(), attempt + 1, retries));
+            }
+            try {
+                Thread.sleep(RETRY_DELAY * (attempt + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to reconnect");
+            }
+        }
+    }
+
+    /**
+     * Helper method to send a file over one "XFILE" connection, starting at the offset the receiver asks for. The
+     * payload is sent as a delta, deduplicated, framed into checksummed chunks and compressed if the receiver accepted
+     * these options, and otherwise sent with {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+     * @param host the remote host (also running JDrop) to send the file to
+     * @param header the "XFILE" header of the file
+     * @param file the file to be sent
+     * @param transfer the transfer to report progress to, which restarts at the offset the receiver asks for
+     * @throws TransferRejectedException if the receiver closes the connection without replying
+     * @throws IOException if the connection fails
+     */
+    private void sendAttempt(String host, String header, File file, Transfer transfer) throws IOException {
+        LOG.log(Level.INFO, "Connecting to " + host + ":" + DEFAULT_PORT);
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, DEFAULT_PORT))) {
+            closeOnCancel(transfer, channel);
+            writeHeader(channel, header);
+            HeaderDecoder reply = new HeaderDecoder(DEFAULT_CHUNK).reset(channel.socket().getInputStream());
+            try {
+                reply.next();
+            } catch (EOFException e) {
+                throw new TransferRejectedException("File " + file.getName() + " was rejected by " + host);
+            }
+            TransferOptions accepted = TransferOptions.parse(reply.fieldAsString());
+            Codec codec = accepted.codec;
+            reply.next();
+            long offset = reply.fieldAsLong();
+            long size = in.size();
+            if (offset > size) throw new ProtocolException("Receiver asked for offset " + offset + " of " + size);
+            if (offset > 0) LOG.log(Level.INFO, "Resuming " + file.getName() + " at " + offset + " bytes");
+            transfer.setProgress(offset);
+            long numBytes;
+            if (accepted.delta) {
+                if (offset != 0) throw new ProtocolException("Receiver asked for a delta from offset " + offset);
+                numBytes = sendDelta(in, channel, reply, codec, size, transfer);
+            } else if (accepted.dedup) {
+                numBytes = sendDeduplicated(in, channel, reply, codec, offset, size, transfer);
+            } else if (accepted.verify) {
+                numBytes = sendVerified(in, channel, reply, codec, offset, size, transfer);
+            } else if (codec != null) {
+                in.position(offset);
+                try (OutputStream out = codec.compress(Channels.newOutputStream(channel))) {
+                    numBytes = copy(Channels.newInputStream(in), out, new byte[RECEIVE_CHUNK], transfer);
+                }
+            } else {
+                numBytes = transfer(in, offset, size - offset, channel, transfer);
+            }
+            metrics.sent(numBytes);
+            LOG.log(Level.INFO, "Written " + numBytes + " bytes to socket" + (accepted.delta || accepted.dedup
+                    || accepted.verify || codec != null
+                    ? " with " + accepted : ""));
+        }
+    }
+
+    /**
+     * Helper method to send a file as a delta against the receiver's previous version of it.
+     * @param in the file to be sent
+     * @param channel the channel to send the instructions through
+     * @param reply the decoder of the receiver's signatures
+     * @param codec the codec to compress the instructions with, or {@code null}
+     * @param size the size (in bytes) of the file
+     * @param transfer the transfer to report progress to
+     * @return the number of literal bytes sent
+     * @throws IOException if the file cannot be read or the connection fails
+     */
+    private static long sendDelta(FileChannel in, SocketChannel channel, HeaderDecoder reply, Codec codec, long size,
+                                  Transfer transfer) throws IOException {
+        // read all signatures before sending, or both ends could block writing into full socket buffers
+        Delta.Signatures signatures = Delta.readSignatures(reply);
+        OutputStream shielded = ChunkFrames.shield(Channels.newOutputStream(channel));
+        long literals;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                codec != null ? codec.compress(shielded) : shielded, RECEIVE_CHUNK))) {
+            literals = Delta.encode(in, size, signatures, out, transfer);
+        }
+        LOG.log(Level.INFO, String.format("Delta of %d bytes against %d blocks has %d literal bytes", size,
+                signatures.strong.size(), literals));
+        return literals;
+    }
+
+    /**
+     * Helper method to send a file split into content-defined chunks: list the chunks, then send the ones the receiver
+     * asks for.
+     * @param in the file to be sent
+     * @param channel the channel to send the chunks through
+     * @param reply the decoder of the receiver's answer
+     * @param codec the codec to compress the missing chunks with, or {@code null}
+     * @param offset the offset to start sending at
+     * @param size the size (in bytes) of the file
+     * @param transfer the transfer to report progress to, which advances over the chunks the receiver already has
+     * @return the number of payload bytes sent
+     * @throws IOException if the file cannot be read or the connection fails
+     */
+    private static long sendDeduplicated(FileChannel in, SocketChannel channel, HeaderDecoder reply, Codec codec,
+                                         long offset, long size, Transfer transfer) throws IOException {
+        List<Chunker.Chunk> chunks = Chunker.split(in, offset, size);
+        StringBuilder list = new StringBuilder().append(chunks.size()).append('\0');
+        for (Chunker.Chunk chunk : chunks) {
+            list.append(chunk.hash).append('\0').append(chunk.length).append('\0');
+        }
+        writeHeader(channel, list.toString());
+        reply.next();
+        // read the whole answer before sending, or both ends could block writing into full socket buffers
+        long count = reply.fieldAsLong();
+        if (count < 0 || count > chunks.size()) {
+            throw new ProtocolException("Receiver asked for " + count + " of " + chunks.size() + " chunks");
+        }
+        int[] missing = new int[(int) count];
+        for (int i = 0; i < missing.length; i++) {
+            reply.next();
+            long index = reply.fieldAsLong();
+            // the receiver lists the chunks in order, so each is counted towards the progress once
+            if (index >= chunks.size() || index <= (i > 0 ? missing[i - 1] : -1)) {
+                throw new ProtocolException("Receiver asked for chunk " + index + " out of order or out of range");
+            }
+            missing[i] = (int) index;
+        }
+        LOG.log(Level.INFO, String.format("Receiver is missing %d of %d chunks", missing.length, chunks.size()));
+        long numBytes = 0;
+        long position = offset;
+        OutputStream shielded = ChunkFrames.shield(Channels.newOutputStream(channel));
+        try (OutputStream out = codec != null ? codec.compress(shielded) : shielded) {
+            byte[] buffer = codec != null ? new byte[Chunker.MAX_CHUNK] : null;
+            for (int index : missing) {
+                Chunker.Chunk chunk = chunks.get(index);
+                if (buffer == null) {
+                    if (transfer(in, chunk.offset, chunk.length, channel) < chunk.length) {
+                        throw new EOFException("File ended within the chunk at " + chunk.offset);
+                    }
+                } else {
+                    ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, chunk.length);
+                    while (wrapped.hasRemaining()) {
+                        if (in.read(wrapped, chunk.offset + wrapped.position()) < 0) {
+                            throw new EOFException("File ended within the chunk at " + chunk.offset);
+                        }
+                    }
+                    out.write(buffer, 0, chunk.length);
+                }
+                transfer.throttle(chunk.length);
+                numBytes += chunk.length;
+                transfer.addProgress(chunk.offset + chunk.length - position);
+                position = chunk.offset + chunk.length;
+            }
+        }
+        transfer.addProgress(size - position);
+        return numBytes;
+    }
+
+    /**
+     * Helper method to send a file framed into checksummed chunks, then send again whatever chunks the receiver
+     * reports as corrupted until it reports none.
+     * @param in the file to be sent
+     * @param channel the channel to send the frames through
+     * @param reply the decoder of the receiver's answers
+     * @param codec the codec to compress each round of frames with, or {@code null}
+     * @param offset the offset to start sending at
+     * @param size the size (in bytes) of the file
+     * @param transfer the transfer to report progress to, which does not count repaired chunks
+     * @return the number of payload bytes sent, including repaired chunks
+     * @throws IOException if the file cannot be read or the connection fails
+     */
+    private static long sendVerified(FileChannel in, SocketChannel channel, HeaderDecoder reply, Codec codec,
+                                     long offset, long size, Transfer transfer) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(ChunkFrames.CHUNK_SIZE, size - offset)];
+        Checksum checksum = Crc32c.create();
+        OutputStream socketOut = ChunkFrames.shield(Channels.newOutputStream(channel));
+        PrimitiveIterator.OfLong chunks = LongStream.range(0, ChunkFrames.count(offset, size)).iterator();
+        long numBytes = 0;
+        for (boolean repair = false; ; repair = true) {
+            try (OutputStream out = codec != null ? codec.compress(socketOut) : socketOut) {
+                while (chunks.hasNext()) {
+                    long index = chunks.nextLong();
+                    int length = ChunkFrames.length(offset, size, index);
+                    ChunkFrames.write(in, out, ChunkFrames.start(offset, index), length, buffer, checksum);
+                    transfer.throttle(length);
+                    numBytes += length;
+                    if (!repair) transfer.addProgress(length);
+                }
+            }
+            reply.next();
+            long count = reply.fieldAsLong();
+            if (count > ChunkFrames.count(offset, size)) {
+                throw new ProtocolException("Receiver reported " + count + " corrupted chunks of "
+                        + ChunkFrames.count(offset, size));
+            }
+            long[] corrupted = new long[(int) count];
+            if (corrupted.length == 0) return numBytes;
+            for (int i = 0; i < corrupted.length; i++) {
+                reply.next();
+                corrupted[i] = reply.fieldAsLong();
+                if (corrupted[i] < 0 || corrupted[i] >= ChunkFrames.count(offset, size)) {
+                    throw new ProtocolException("Receiver asked for unknown chunk " + corrupted[i]);
+                }
+            }
+            LOG.log(Level.WARNING, "Receiver reported " + corrupted.length + " corrupted chunks, sending them again");
+            chunks = Arrays.stream(corrupted).iterator();
+        }
+    }
+
+    /**
+     * Return an identity of a file that changes when the file is modified, so that a receiver only resumes a transfer
+     * of the very same file content.
+     * @param file the file to be sent
+     * @return the identity of the file
+     */
+    private static String fileId(File file) {
+        return String.format("%x-%x-%x", file.getAbsolutePath().hashCode(), file.length(), file.lastModified());
+    }
+
+    /**
+     * Return the number of connections to send a file over. Each connection carries at least
+     * {@link ServerConfig#getMinStripeSize()} bytes.
+     * @param host the remote host
+     * @param size the size (in bytes) of the file
+     * @return the number of connections, 1 if the file should not be striped
+     */
+    private int getStripes(String host, long size) {
+        int stripes = config.getStripes() == ServerConfig.AUTO_STRIPES
+                ? stripeTuner.getStripes(host) : config.getStripes();
+        return (int) Math.max(1, Math.min(stripes, size / config.getMinStripeSize()));
+    }
+
+    /**
+     * Send a file split into byte ranges over several parallel connections, which together can fill links that a
+     * single TCP stream cannot (e.g. high bandwidth with high latency). This method returns once all stripes are sent.
+     * @param host the remote host (also running JDrop) to send the file to
+     * @param code the code for verification
+     * @param file the file to be sent
+     * @param stripes the number of connections
+     * @param transfer the transfer to report the progress of all stripes to
+     * @throws IOException if a stripe cannot be sent
+     */
+    private void sendStriped(String host, String code, File file, int stripes, Transfer transfer)
+            throws IOException {
+        String id = UUID.randomUUID().toString();
+        long size = file.length();
+        long stripeSize = (size + stripes - 1) / stripes;
+        LOG.log(Level.INFO, "Connecting to " + host + ":" + DEFAULT_PORT + " with " + stripes + " connections");
+        long time = System.nanoTime();
+        CompletableFuture<?>[] parts = new CompletableFuture<?>[stripes];
+        for (int i = 0; i < stripes; i++) {
+            long offset = Math.min(i * stripeSize, size);
+            long length = Math.min(stripeSize, size - offset);
+            String header = String.format("%s\0PART\0%s\0%s\0%d\0%d\0%d\0%d\0",
+                    code, id, file.getName(), size, stripes, offset, length);
+            parts[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    sendStripe(host, header, file, offset, length, transfer);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, senders);
+        }
+        try {
+            CompletableFuture.allOf(parts).join();
+            long elapsed = System.nanoTime() - time;
+            LOG.log(Level.INFO, String.format("Written %d bytes over %d connections in %.3f seconds",
+                    size, stripes, elapsed / 1e9));
+            if (config.getStripes() == ServerConfig.AUTO_STRIPES) {
+                stripeTuner.record(host, stripes, size, elapsed);
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Helper method to send one stripe of a file over its own connection.
+     * @param host the remote host (also running JDrop) to send the stripe to
+     * @param header the "PART" header of the stripe
+     * @param file the file to be sent
+     * @param offset the offset of the stripe in the file
+     * @param length the length (in bytes) of the stripe
+     * @param transfer the transfer to report progress to
+     * @throws IOException if the stripe cannot be sent
+     */
+    private void sendStripe(String host, String header, File file, long offset, long length, Transfer transfer)
+            throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, DEFAULT_PORT))) {
+            closeOnCancel(transfer, channel);
+            writeHeader(channel, header);
+            if (transfer(in, offset, length, channel, transfer) < length) {
+                throw new EOFException("File ended before the stripe at " + offset + " was sent");
+            }
+            metrics.sent(length);
+        }
+    }
+
+    /**
+     * Helper method to queue a send on the {@link SendScheduler}.
+     * @param host the remote host the send goes to
+     * @param size the size (in bytes) of the payload
+     * @param text whether the payload is a text
+     * @param completion the completion of the send, which is failed if the queue is full
+     * @param send the send to run, unless the completion is already done (e.g. cancelled) by then
+     */
+    private void enqueue(String host, long size, boolean text, CompletableFuture<?> completion, Runnable send) {
+        try {
+            sendScheduler.submit(host, size, text, completion, send);
+        } catch (RejectedExecutionException e) {
+            completion.completeExceptionally(e);
+            onErrorListener.accept(e);
+        }
+    }
+
+    /**
+     * Helper method to close a connection of an outgoing transfer when the transfer is cancelled, which makes a send
+     * blocked on the connection fail right away.
+     * @param transfer the outgoing transfer
+     * @param channel the connection to close
+     */
+    private static void closeOnCancel(Transfer transfer, Closeable channel) {
+        transfer.getCompletion().whenComplete((numBytes, e) -> {
+            if (transfer.isCancelled()) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    private static void writeHeader(WritableByteChannel channel, String header) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(header.getBytes());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Helper method to write the rest of the file to the socket, transferred by the kernel directly from the page
+     * cache to the socket where the platform supports it.
+     * @param in input stream to read the file from local filesystem
+     * @param channel the channel of the socket to write the file to
+     * @param transfer the transfer to report progress to
+     * @return the number of bytes written to the socket
+     * @throws IOException if the file cannot be read or the socket cannot be written to
+     */
+    private long writeFile(FileInputStream in, SocketChannel channel, Transfer transfer) throws IOException {
+        FileChannel file = in.getChannel();
+        long position = file.position();
+        return transfer(file, position, file.size() - position, channel, transfer);
+    }
+
+    /**
+     * Helper method to transfer a byte range of a file to a channel with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+     * @param in the file to read from
+     * @param position the offset of the first byte to transfer
+     * @param count the number of bytes to transfer
+     * @param out the channel to write to
+     * @return the number of bytes transferred, less than {@code count} only if the file ended early
+     * @throws IOException if the file cannot be read or the channel cannot be written to
+     */
+    static long transfer(FileChannel in, long position, long count, WritableByteChannel out)
+            throws IOException {
+        return transfer(in, position, count, out, null);
+    }
+
+    /**
+     * Helper method to transfer a byte range of a file to a channel and report the progress to a transfer. The range
+     * is transferred one I/O unit of the transfer (at most {@link #SEND_CHUNK} bytes) at a time, so that progress is
+     * reported while a large file is being sent. If {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+     * makes no progress before the file ends, or fails before anything was sent while the channel is still open (e.g.
+     * on file systems or platforms that do not support it), the rest of the range is copied through a heap buffer.
+     * @param in the file to read from
+     * @param position the offset of the first byte to transfer
+     * @param count the number of bytes to transfer
+     * @param out the channel to write to
+     * @param transfer the transfer to report progress to, or {@code null}
+     * @return the number of bytes transferred, less than {@code count} only if the file ended early
+     * @throws IOException if the file cannot be read or the channel cannot be written to
+     */
+    static long transfer(FileChannel in, long position, long count, WritableByteChannel out, Transfer transfer)
+            throws IOException {
+        long end = position + count;
+        long current = position;
+        while (current < end) {
+            long start = System.nanoTime();
+            long chunk = Math.min(transfer != null ? transfer.chunk((int) SEND_CHUNK) : SEND_CHUNK, end - current);
+            long numBytes;
+            try {
+                numBytes = in.transferTo(current, chunk, out);
+            } catch (IOException e) {
+                if (current > position || !out.isOpen()) throw e;
+                LOG.log(Level.WARNING, "transferTo failed (" + e + "), copying through a buffer instead");
+                numBytes = 0;
+            }
+            if (numBytes <= 0) {
+                if (current >= in.size()) break;
+                return current - position + copy(in, current, end - current, out, transfer);
+            }
+            current += numBytes;
+            if (transfer != null) {
+                transfer.measure(numBytes, System.nanoTime() - start);
+                transfer.addProgress(numBytes);
+                transfer.throttle(numBytes);
+            }
+        }
+        return current - position;
+    }
+
+    /**
+     * Helper method to copy a byte range of a file to a channel through a heap buffer, for where
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)} does not work.
+     * @param in the file to read from
+     * @param position the offset of the first byte to copy
+     * @param count the number of bytes to copy
+     * @param out the channel to write to
+     * @param transfer the transfer to report progress to, or {@code null}
+     * @return the number of bytes copied, less than {@code count} only if the file ended early
+     * @throws IOException if the file cannot be read or the channel cannot be written to
+     */
+    private static long copy(FileChannel in, long position, long count, WritableByteChannel out, Transfer transfer)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(RECEIVE_CHUNK, count));
+        long end = position + count;
+        long current = position;
+        while (current < end) {
+            long start = System.nanoTime();
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - current));
+            int numBytes = in.read(buffer, current);
+            if (numBytes < 0) break;
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            current += numBytes;
+            if (transfer != null) {
+                transfer.measure(numBytes, System.nanoTime() - start);
+                transfer.addProgress(numBytes);
+                transfer.throttle(numBytes);
+            }
+        }
+        return current - position;
+    }
+
+    /**
+     * Helper method to copy a stream until it ends, one buffer at a time.
+     * @param in the stream to read from
+     * @param out the stream to write to
+     * @param buffer the buffer to copy through, whose length is the chunk size
+     * @return the number of bytes copied
+     * @throws IOException if a stream cannot be read or written
+     */
+    static long copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        return copy(in, out, buffer, null);
+    }
+
+    /**
+     * Helper method to copy a stream until it ends, one buffer at a time, and report the progress to a transfer.
+     * @param in the stream to read from
+     * @param out the stream to write to
+     * @param buffer the buffer to copy through, whose length is the largest chunk size
+     * @param transfer the transfer to report progress to, or {@code null}
+     * @return the number of bytes copied
+     * @throws IOException if a stream cannot be read or written
+     */
+    static long copy(InputStream in, OutputStream out, byte[] buffer, Transfer transfer) throws IOException {
+        long counter = 0;
+        int numBytes;
+        long start = System.nanoTime();
+        while ((numBytes = in.read(buffer, 0, transfer != null ? transfer.chunk(buffer.length) : buffer.length))
+                != -1) {
+            counter += numBytes;
+            out.write(buffer, 0, numBytes);
+            if (transfer != null) {
+                transfer.measure(numBytes, System.nanoTime() - start);
+                transfer.addProgress(numBytes);
+                transfer.throttle(numBytes);
+                start = System.nanoTime();
+            }
+        }
+        return counter;
+    }
+
+    private void renewCode() {
+        if (config.getCode() != null) {
+            if (code == null) {
+                code = config.getCode();
+                transferListener.codeChanged(code);
+            }
+            return;
+        }
+        code = String.format("%06d", random.nextInt(1000000));
+        LOG.log(Level.INFO, "New Code=" + code);
+        transferListener.codeChanged(code);
+    }
+
+    /**
+     * Stop accepting connections and abort the transfers that are still running.
+     */
+    public void interrupt() {
+        if (nioEngine != null) {
+            nioEngine.stop();
+        } else if (serverThread != null) {
+            serverThread.interrupt();
+        }
+        workers.shutdownNow();
+        senders.shutdownNow();
+        sendScheduler.shutdown();
+        diskWriters.shutdownNow();
+        if (reporter != null) reporter.shutdownNow();
+        if (stripeReaper != null) stripeReaper.shutdownNow();
+        if (exported != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(exported);
+            } catch (JMException e) {
+                onErrorListener.accept(e);
+            }
+            exported = null;
+        }
+    }
+
+    /**
+     * Record that a received chunk has been written to disk.
+     * @param numBytes the size (in bytes) of the chunk
+     * @param nanos how long writing the chunk took
+     */
+    void chunkWritten(int numBytes, long nanos) {
+        metrics.chunkWritten(nanos);
+        TransferEvents.chunkWritten(numBytes, nanos);
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Return the metrics of this server, which count both received and sent transfers.
+     * @return the metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Return the pool that all engines of this server lease their direct buffers from.
+     * @return the buffer pool
+     */
+    BufferPool getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * Return the limiter all sends pass through, whose rate may be changed while the server runs.
+     * @return the send limiter
+     */
+    public RateLimiter getSendLimiter() {
+        return sendLimiter;
+    }
+
+    /**
+     * Return the limiter all receives pass through, whose rate may be changed while the server runs.
+     * @return the receive limiter
+     */
+    public RateLimiter getReceiveLimiter() {
+        return receiveLimiter;
+    }
+
+    /**
+     * Change the rate the sends to each host, and the receives from each host, are limited to. The change applies
+     * right away, also to transfers that are already running.
+     * @param peerLimit the limit in bytes per second, or 0 for no limit
+     */
+    public void setPeerLimit(long peerLimit) {
+        if (peerLimit < 0) throw new IllegalArgumentException("peerLimit must not be negative: " + peerLimit);
+        this.peerLimit = peerLimit;
+        for (RateLimiter limiter : peerLimiters.values()) {
+            limiter.setRate(peerLimit);
+        }
+    }
+
+    public long getPeerLimit() {
+        return peerLimit;
+    }
+
+    /**
+     * The files of a "BATCH" transfer, listed up front.
+     */
+    private static final class Batch {
+        private final File root;
+        private final String name;
+        private final List<Path> paths = new ArrayList<>();
+        private final List<Long> sizes = new ArrayList<>();
+        private final StringBuilder manifest = new StringBuilder();
+        private long total;
+
+        /**
+         * List the files to be sent.
+         * @param files the files and directories to be sent; a single directory is sent as the batch itself, several
+         *              files and directories are sent as entries of a batch named after the directory of the first one
+         * @throws IOException if a directory cannot be listed
+         */
+        Batch(List<File> files) throws IOException {
+            boolean single = files.size() == 1;
+            File first = files.get(0).getAbsoluteFile();
+            root = single ? first : first.getParentFile();
+            name = root.getName();
+            for (File selected : files) {
+                Path start = selected.getAbsoluteFile().toPath();
+                Path base = single ? start : start.getParent();
+                List<Path> found;
+                try (Stream<Path> walk = Files.walk(start)) {
+                    found = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+                }
+                for (Path path : found) {
+                    long size = Files.size(path);
+                    String relative = base.relativize(path).toString().replace(File.separatorChar, '/');
+                    manifest.append(relative).append('\0').append(size).append('\0');
+                    paths.add(path);
+                    sizes.add(size);
+                    total += size;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,642 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.File;
+
+/**
+ * The {@code ServerConfig} class holds the tunable settings of a {@link Server}. Every setting defaults to the value of
+ * the matching {@code jdrop.*} system property (if present) so that they can be changed without code changes, and the
+ * setters can be chained such as
+ * <pre>
+ *     {@code new ServerConfig()
+ *              .setBacklog(128)
+ *              .setMaxConcurrency(32);}
+ * </pre>
+ */
+public class ServerConfig {
+    public static final int DEFAULT_BACKLOG = 50;
+    public static final int DEFAULT_MAX_CONCURRENCY = 8;
+    public static final int DEFAULT_SELECTOR_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_WRITER_THREADS = 4;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_WRITE_BEHIND_DEPTH = 4;
+    public static final long DEFAULT_BUFFER_MEMORY = 256L * 1024 * 1024;
+    public static final int DEFAULT_MIN_IO_SIZE = 8 * 1024;
+    public static final int DEFAULT_MAX_IO_SIZE = 4 * 1024 * 1024;
+    public static final int AUTO_STRIPES = 0;
+    public static final int DEFAULT_MAX_STRIPES = 16;
+    public static final int MAX_STRIPES = 256;
+    public static final long DEFAULT_MIN_STRIPE_SIZE = 32L * 1024 * 1024;
+    public static final int DEFAULT_STRIPE_TIMEOUT = 60000;
+    public static final int DEFAULT_RETRIES = 3;
+    public static final long DEFAULT_MMAP_THRESHOLD = 256L * 1024 * 1024;
+    public static final long DEFAULT_CHUNK_STORE_BUDGET = 1024L * 1024 * 1024;
+    public static final int DEFAULT_METRICS_INTERVAL = 60;
+    public static final int DEFAULT_MAX_SENDS = 2;
+    public static final int DEFAULT_MAX_SENDS_PER_HOST = 1;
+    public static final int DEFAULT_SEND_QUEUE = 64;
+
+    /**
+     * The engines available to receive incoming connections.
+     */
+    public enum Engine {
+        /** One worker thread per connection with blocking socket I/O. */
+        BLOCKING,
+        /** A few selector threads multiplexing non-blocking socket channels. */
+        NIO
+    }
+
+    private int backlog = Integer.getInteger("jdrop.backlog", DEFAULT_BACKLOG);
+    private int maxConcurrency = Integer.getInteger("jdrop.maxConcurrency", DEFAULT_MAX_CONCURRENCY);
+    private Engine engine = Engine.valueOf(System.getProperty("jdrop.engine", Engine.BLOCKING.name()).toUpperCase());
+    private int selectorThreads = Integer.getInteger("jdrop.selectorThreads", DEFAULT_SELECTOR_THREADS);
+    private int writerThreads = Integer.getInteger("jdrop.writerThreads", DEFAULT_WRITER_THREADS);
+    private int bufferSize = Integer.getInteger("jdrop.bufferSize", DEFAULT_BUFFER_SIZE);
+    private int writeBehindDepth = Integer.getInteger("jdrop.writeBehindDepth", DEFAULT_WRITE_BEHIND_DEPTH);
+    private long bufferMemory = Long.getLong("jdrop.bufferMemory", DEFAULT_BUFFER_MEMORY);
+    private boolean bufferLeakDetection = Boolean.getBoolean("jdrop.bufferLeakDetection");
+    private int minIoSize = Integer.getInteger("jdrop.minIoSize", DEFAULT_MIN_IO_SIZE);
+    private int maxIoSize = Integer.getInteger("jdrop.maxIoSize", DEFAULT_MAX_IO_SIZE);
+    private int stripes = Integer.getInteger("jdrop.stripes", 1);
+    private int maxStripes = Integer.getInteger("jdrop.maxStripes", DEFAULT_MAX_STRIPES);
+    private long minStripeSize = Long.getLong("jdrop.minStripeSize", DEFAULT_MIN_STRIPE_SIZE);
+    private int stripeTimeout = Integer.getInteger("jdrop.stripeTimeout", DEFAULT_STRIPE_TIMEOUT);
+    private boolean resume = Boolean.parseBoolean(System.getProperty("jdrop.resume", "true"));
+    private int retries = Integer.getInteger("jdrop.retries", DEFAULT_RETRIES);
+    private String code = System.getProperty("jdrop.code");
+    private long mmapThreshold = Long.getLong("jdrop.mmapThreshold", DEFAULT_MMAP_THRESHOLD);
+    private String codec = System.getProperty("jdrop.codec");
+    private boolean verify = Boolean.getBoolean("jdrop.verify");
+    private boolean dedup = Boolean.getBoolean("jdrop.dedup");
+    private boolean delta = Boolean.getBoolean("jdrop.delta");
+    private File chunkStore = System.getProperty("jdrop.chunkStore") != null
+            ? new File(System.getProperty("jdrop.chunkStore")) : null;
+    private long chunkStoreBudget = Long.getLong("jdrop.chunkStoreBudget", DEFAULT_CHUNK_STORE_BUDGET);
+    private int metricsInterval = Integer.getInteger("jdrop.metricsInterval", DEFAULT_METRICS_INTERVAL);
+    private int maxSends = Integer.getInteger("jdrop.maxSends", DEFAULT_MAX_SENDS);
+    private int maxSendsPerHost = Integer.getInteger("jdrop.maxSendsPerHost", DEFAULT_MAX_SENDS_PER_HOST);
+    private int sendQueue = Integer.getInteger("jdrop.sendQueue", DEFAULT_SEND_QUEUE);
+    private long sendLimit = Long.getLong("jdrop.sendLimit", 0);
+    private long receiveLimit = Long.getLong("jdrop.receiveLimit", 0);
+    private long peerLimit = Long.getLong("jdrop.peerLimit", 0);
+    private long transferLimit = Long.getLong("jdrop.transferLimit", 0);
+
+    /**
+     * Set the maximum number of pending connections the operating system queues for the listener while all workers
+     * are busy. Connections beyond this limit are refused.
+     * @param backlog the accept backlog, must be positive
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setBacklog(int backlog) {
+        if (backlog <= 0) throw new IllegalArgumentException("backlog must be positive: " + backlog);
+        this.backlog = backlog;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of incoming connections that are handled at the same time. Further connections wait in
+     * the accept backlog until a worker (or, with the {@link Engine#NIO} engine, a connection slot) becomes available.
+     * @param maxConcurrency the maximum number of concurrent inbound transfers, must be positive
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * Set the engine that receives incoming connections. See {@link Engine} for available engines.
+     * @param engine the receive engine
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setEngine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * Set the number of selector threads used by the {@link Engine#NIO} engine.
+     * @param selectorThreads the number of selector threads, must be positive
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setSelectorThreads(int selectorThreads) {
+        if (selectorThreads <= 0) {
+            throw new IllegalArgumentException("selectorThreads must be positive: " + selectorThreads);
+        }
+        this.selectorThreads = selectorThreads;
+        return this;
+    }
+
+    /**
+     * Set the number of threads the {@link Engine#NIO} engine uses to write received chunks to disk.
+     * @param writerThreads the number of file writer threads, must be positive
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setWriterThreads(int writerThreads) {
+        if (writerThreads <= 0) throw new IllegalArgumentException("writerThreads must be positive: " + writerThreads);
+        this.writerThreads = writerThreads;
+        return this;
+    }
+
+    /**
+     * Set how many received buffers may wait to be written to disk while the network keeps being read. A deeper ring
+     * rides out longer disk stalls at the cost of memory per transfer; the time the network waits for the disk anyway
+     * is reported by {@link Metrics#getDiskStalls()}.
+     * @param writeBehindDepth the number of buffers per transfer, or 0 to write each buffer before reading the next
+     *                         (the {@link Engine#NIO} engine always writes behind at least one buffer)
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setWriteBehindDepth(int writeBehindDepth) {
+        if (writeBehindDepth < 0) {
+            throw new IllegalArgumentException("writeBehindDepth must not be negative: " + writeBehindDepth);
+        }
+        this.writeBehindDepth = writeBehindDepth;
+        return this;
+    }
+
+    /**
+     * Set the size of the pooled direct buffer the {@link Engine#NIO} engine reads the header of a connection and the
+     * start of its payload into. The size is rounded up to the next size class of the buffer pool. The buffers after
+     * it follow the I/O unit of the transfer, see {@link #setIoSizeBounds(int, int)}.
+     * @param bufferSize the buffer size in bytes, must be positive
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Set how much memory the direct buffers of all engines may take up together, whether they are in use or idle in
+     * the pool. When the cap is reached, idle buffers are freed first; after that, buffers are allocated on the heap
+     * instead, which is slower but never fails a transfer.
+     * @param bufferMemory the cap in bytes, must be positive
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setBufferMemory(long bufferMemory) {
+        if (bufferMemory <= 0) throw new IllegalArgumentException("bufferMemory must be positive: " + bufferMemory);
+        this.bufferMemory = bufferMemory;
+        return this;
+    }
+
+    /**
+     * Set whether the buffer pool records where each buffer was leased, and logs a warning with that stack trace
+     * when a buffer is garbage collected without having been returned. Meant for debugging, as recording the stack
+     * of every lease is expensive.
+     * @param bufferLeakDetection {@code true} to detect leaked buffers
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setBufferLeakDetection(boolean bufferLeakDetection) {
+        this.bufferLeakDetection = bufferLeakDetection;
+        return this;
+    }
+
+    /**
+     * Set the bounds of the I/O unit, the number of bytes each read or write of a transfer asks for. Every transfer
+     * starts at 256 KiB (or the nearest bound) and adapts its unit to the throughput and latency it observes. Setting
+     * both bounds to the same size fixes the unit.
+     * @param minIoSize the smallest unit in bytes, must be positive
+     * @param maxIoSize the largest unit in bytes, at least {@code minIoSize} and at most 4 MiB
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setIoSizeBounds(int minIoSize, int maxIoSize) {
+        if (minIoSize <= 0) throw new IllegalArgumentException("minIoSize must be positive: " + minIoSize);
+        if (maxIoSize < minIoSize || maxIoSize > BufferPool.MAX_SIZE) {
+            throw new IllegalArgumentException(String.format("maxIoSize must be between %d and %d: %d", minIoSize,
+                    BufferPool.MAX_SIZE, maxIoSize));
+        }
+        this.minIoSize = minIoSize;
+        this.maxIoSize = maxIoSize;
+        return this;
+    }
+
+    /**
+     * Set the number of parallel connections a file is split across when it is sent. With {@link #AUTO_STRIPES} the
+     * count is tuned from the throughput of previous transfers to the same host, up to {@link #getMaxStripes()}.
+     * Files are only split into stripes of at least {@link #getMinStripeSize()} bytes, and receivers accept at most
+     * {@link #MAX_STRIPES} connections per file.
+     * @param stripes the number of connections, 1 to disable striping or {@link #AUTO_STRIPES}
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setStripes(int stripes) {
+        if (stripes < 0 || stripes > MAX_STRIPES) {
+            throw new IllegalArgumentException("stripes must be between 0 and " + MAX_STRIPES + ": " + stripes);
+        }
+        this.stripes = stripes;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of parallel connections that {@link #AUTO_STRIPES} tuning may use.
+     * @param maxStripes the maximum number of connections per file, between 1 and {@link #MAX_STRIPES}
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setMaxStripes(int maxStripes) {
+        if (maxStripes <= 0 || maxStripes > MAX_STRIPES) {
+            throw new IllegalArgumentException("maxStripes must be between 1 and " + MAX_STRIPES + ": " + maxStripes);
+        }
+        this.maxStripes = maxStripes;
+        return this;
+    }
+
+    /**
+     * Set the minimum size of a stripe. Smaller files are sent over fewer connections (or a single one).
+     * @param minStripeSize the minimum stripe size in bytes, must be positive
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setMinStripeSize(long minStripeSize) {
+        if (minStripeSize <= 0) throw new IllegalArgumentException("minStripeSize must be positive: " + minStripeSize);
+        this.minStripeSize = minStripeSize;
+        return this;
+    }
+
+    /**
+     * Set how long a striped receive may go without any of its connections arriving or making progress. After that,
+     * the transfer fails and its open connections are closed, e.g. when the sender died before opening every stripe.
+     * @param stripeTimeout the idle timeout in milliseconds, must be positive
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setStripeTimeout(int stripeTimeout) {
+        if (stripeTimeout <= 0) throw new IllegalArgumentException("stripeTimeout must be positive: " + stripeTimeout);
+        this.stripeTimeout = stripeTimeout;
+        return this;
+    }
+
+    /**
+     * Set whether files are sent resumably. A resumable transfer that is interrupted continues from the last byte the
+     * receiver has recorded in its transfer journal instead of starting over. Disable this to send files to peers
+     * that only understand the plain "FILE" type.
+     * @param resume whether to send files resumably
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    /**
+     * Set how many times the sender reconnects to resume an interrupted transfer before giving up.
+     * @param retries the number of reconnection attempts, 0 to fail on the first interruption
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setRetries(int retries) {
+        if (retries < 0) throw new IllegalArgumentException("retries must not be negative: " + retries);
+        this.retries = retries;
+        return this;
+    }
+
+    /**
+     * Set a fixed verification code. By default a random code is generated and renewed after every received file, which
+     * suits a user reading the code off the screen; a headless receiver is better served by a code that is configured
+     * once on both ends.
+     * @param code the code senders must supply, or {@code null} for random codes
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setCode(String code) {
+        if (code != null && (code.isEmpty() || code.indexOf('\0') >= 0)) {
+            throw new IllegalArgumentException("code must be non-empty and must not contain null characters");
+        }
+        this.code = code;
+        return this;
+    }
+
+    /**
+     * Set the size from which incoming files are received into memory-mapped windows of the file instead of through a
+     * heap buffer. Mapping saves a copy and most write calls per chunk, but costs a mapping per window, which does not
+     * pay off for small files.
+     * @param mmapThreshold the minimum number of bytes left to receive, must be positive; {@link Long#MAX_VALUE}
+     *                      disables memory-mapped receiving
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setMmapThreshold(long mmapThreshold) {
+        if (mmapThreshold <= 0) throw new IllegalArgumentException("mmapThreshold must be positive: " + mmapThreshold);
+        this.mmapThreshold = mmapThreshold;
+        return this;
+    }
+
+    /**
+     * Set the codec to compress sent files with, if the receiver supports it. Files whose content looks already
+     * compressed are sent uncompressed regardless.
+     * @param codec the name of a codec registered with {@link Codecs}, or {@code null} to send uncompressed
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setCodec(String codec) {
+        if (codec != null && Codecs.get(codec) == null) throw new IllegalArgumentException("Unknown codec: " + codec);
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * Set whether sent files are verified chunk by chunk with CRC-32C checksums, if the receiver supports it. The
+     * receiver checks each chunk as it arrives and asks for corrupted chunks again, at the cost of receiving through a
+     * heap buffer instead of memory-mapped windows.
+     * @param verify whether to send files with checksums
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setVerify(boolean verify) {
+        this.verify = verify;
+        return this;
+    }
+
+    /**
+     * Set whether sent files are split into content-defined chunks so that the receiver can skip the chunks it already
+     * holds in its chunk store. This pays off when similar files (e.g. successive builds) are sent to the same
+     * receiver, at the cost of reading each file once more to split it.
+     * @param dedup whether to send files deduplicated
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setDedup(boolean dedup) {
+        this.dedup = dedup;
+        return this;
+    }
+
+    /**
+     * Set whether sent files are sent as a delta against the file the receiver already has at the chosen destination,
+     * if any. The receiver sends the signatures of the blocks of its file, and only the parts of the sent file that
+     * match no block travel. This pays off when a file is sent again after a small change.
+     * @param delta whether to send files as deltas
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setDelta(boolean delta) {
+        this.delta = delta;
+        return this;
+    }
+
+    /**
+     * Set the directory in which received chunks are kept for deduplication. Without a chunk store, the receiver
+     * declines deduplicated transfers.
+     * @param chunkStore the directory of the chunk store, or {@code null} to receive without deduplication
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setChunkStore(File chunkStore) {
+        this.chunkStore = chunkStore;
+        return this;
+    }
+
+    /**
+     * Set the disk space the chunk store may take up. Beyond it, the least recently used chunks are deleted.
+     * @param chunkStoreBudget the budget in bytes, must not be negative
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setChunkStoreBudget(long chunkStoreBudget) {
+        if (chunkStoreBudget < 0) {
+            throw new IllegalArgumentException("chunkStoreBudget must not be negative: " + chunkStoreBudget);
+        }
+        this.chunkStoreBudget = chunkStoreBudget;
+        return this;
+    }
+
+    /**
+     * Set how often a started server logs a summary of its {@link Metrics}. The metrics are collected (and exported
+     * through JMX) regardless of this setting.
+     * @param metricsInterval the interval in seconds, or 0 to never log the metrics
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setMetricsInterval(int metricsInterval) {
+        if (metricsInterval < 0) {
+            throw new IllegalArgumentException("metricsInterval must not be negative: " + metricsInterval);
+        }
+        this.metricsInterval = metricsInterval;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of sends submitted through {@link Server#submitFiles(String, String, java.util.List)} and
+     * the like that run at the same time. Texts and small files have as many senders again of their own, so that they
+     * do not wait for large files. Further submissions wait in the send queue.
+     * @param maxSends the maximum number of concurrent sends of large files, and of small files, must be positive
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setMaxSends(int maxSends) {
+        if (maxSends <= 0) throw new IllegalArgumentException("maxSends must be positive: " + maxSends);
+        this.maxSends = maxSends;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of submitted sends to the same host that run at the same time (counted separately for
+     * small and large files, like {@link #setMaxSends(int)}). Sends to other hosts may use the remaining senders.
+     * @param maxSendsPerHost the maximum number of concurrent sends per host, must be positive
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setMaxSendsPerHost(int maxSendsPerHost) {
+        if (maxSendsPerHost <= 0) {
+            throw new IllegalArgumentException("maxSendsPerHost must be positive: " + maxSendsPerHost);
+        }
+        this.maxSendsPerHost = maxSendsPerHost;
+        return this;
+    }
+
+    /**
+     * Set how many submitted sends may wait for a free sender. A submission beyond this fails right away with a
+     * {@link java.util.concurrent.RejectedExecutionException}.
+     * @param sendQueue the capacity of the send queue, must be positive
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setSendQueue(int sendQueue) {
+        if (sendQueue <= 0) throw new IllegalArgumentException("sendQueue must be positive: " + sendQueue);
+        this.sendQueue = sendQueue;
+        return this;
+    }
+
+    /**
+     * Set the rate all sends together are limited to. The limit can be changed while the server runs through
+     * {@link Server#getSendLimiter()}.
+     * @param sendLimit the limit in bytes per second, or 0 for no limit
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setSendLimit(long sendLimit) {
+        if (sendLimit < 0) throw new IllegalArgumentException("sendLimit must not be negative: " + sendLimit);
+        this.sendLimit = sendLimit;
+        return this;
+    }
+
+    /**
+     * Set the rate all receives together are limited to. The limit can be changed while the server runs through
+     * {@link Server#getReceiveLimiter()}.
+     * @param receiveLimit the limit in bytes per second, or 0 for no limit
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setReceiveLimit(long receiveLimit) {
+        if (receiveLimit < 0) throw new IllegalArgumentException("receiveLimit must not be negative: " + receiveLimit);
+        this.receiveLimit = receiveLimit;
+        return this;
+    }
+
+    /**
+     * Set the rate the sends to each host, and the receives from each host, are limited to. The limit can be changed
+     * while the server runs through {@link Server#setPeerLimit(long)}.
+     * @param peerLimit the limit in bytes per second, or 0 for no limit
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setPeerLimit(long peerLimit) {
+        if (peerLimit < 0) throw new IllegalArgumentException("peerLimit must not be negative: " + peerLimit);
+        this.peerLimit = peerLimit;
+        return this;
+    }
+
+    /**
+     * Set the rate each transfer starts out limited to. The limit of a single transfer can be changed while it runs
+     * through {@link Transfer#getLimiter()}.
+     * @param transferLimit the limit in bytes per second, or 0 for no limit
+     * @return the {@code ServerConfig} instance to allow chaining of methods
+     */
+    public ServerConfig setTransferLimit(long transferLimit) {
+        if (transferLimit < 0) {
+            throw new IllegalArgumentException("transferLimit must not be negative: " + transferLimit);
+        }
+        this.transferLimit = transferLimit;
+        return this;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    public int getWriterThreads() {
+        return writerThreads;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getBufferMemory() {
+        return bufferMemory;
+    }
+
+    public boolean isBufferLeakDetection() {
+        return bufferLeakDetection;
+    }
+
+    public int getMinIoSize() {
+        return minIoSize;
+    }
+
+    public int getMaxIoSize() {
+        return maxIoSize;
+    }
+
+    public int getWriteBehindDepth() {
+        return writeBehindDepth;
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    public int getMaxStripes() {
+        return maxStripes;
+    }
+
+    public long getMinStripeSize() {
+        return minStripeSize;
+    }
+
+    public int getStripeTimeout() {
+        return stripeTimeout;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public long getMmapThreshold() {
+        return mmapThreshold;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public File getChunkStore() {
+        return chunkStore;
+    }
+
+    public long getChunkStoreBudget() {
+        return chunkStoreBudget;
+    }
+
+    public int getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    public int getMaxSends() {
+        return maxSends;
+    }
+
+    public int getMaxSendsPerHost() {
+        return maxSendsPerHost;
+    }
+
+    public int getSendQueue() {
+        return sendQueue;
+    }
+
+    public long getSendLimit() {
+        return sendLimit;
+    }
+
+    public long getReceiveLimit() {
+        return receiveLimit;
+    }
+
+    public long getPeerLimit() {
+        return peerLimit;
+    }
+
+    public long getTransferLimit() {
+        return transferLimit;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@code StripeTuner} class picks the number of parallel streams for striped transfers to a host from the
+ * throughput measured in previous transfers to that host. It starts with two streams and keeps doubling the count as
+ * long as each step raises the throughput by at least 10%. Once more streams stop helping it settles on the best count
+ * seen so far. The recorded best throughput slowly decays so that the tuner probes again when the link changes.
+ */
+class StripeTuner {
+    private static final int INITIAL_STRIPES = 2;
+    private static final double MIN_GAIN = 1.1;
+    private static final double DECAY = 0.95;
+
+    private final int maxStripes;
+    private final Map<String, Link> links;
+
+    /**
+     * Instantiate a new {@code StripeTuner}.
+     * @param maxStripes the maximum number of streams to probe
+     */
+    StripeTuner(int maxStripes) {
+        this.maxStripes = maxStripes;
+        links = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Return the number of streams to use for the next transfer to a host.
+     * @param host the remote host
+     * @return the number of streams, at least 1
+     */
+    int getStripes(String host) {
+        Link link = links.get(host);
+        return link == null ? Math.min(INITIAL_STRIPES, maxStripes) : link.next;
+    }
+
+    /**
+     * Record the outcome of a striped transfer to a host.
+     * @param host the remote host
+     * @param stripes the number of streams the transfer used
+     * @param bytes the number of bytes transferred
+     * @param nanos the time the transfer took
+     */
+    void record(String host, int stripes, long bytes, long nanos) {
+        if (nanos <= 0) return;
+        double throughput = bytes * 1e9 / nanos;
+        Link link = links.computeIfAbsent(host, h -> new Link());
+        synchronized (link) {
+            link.bestThroughput *= DECAY;
+            if (throughput >= link.bestThroughput * MIN_GAIN) {
+                link.best = stripes;
+                link.bestThroughput = throughput;
+                link.next = Math.min(stripes * 2, maxStripes);
+            } else {
+                link.next = link.best;
+            }
+        }
+    }
+
+    private static class Link {
+        private int best = 1;
+        private int next = 1;
+        private double bestThroughput;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The {@code StripedReceive} class holds the state shared by the connections of one striped transfer. The first
+ * connection to arrive asks the user where to save the file; all connections then write their byte range into the
+ * same {@link FileChannel} with positional writes and report progress to one merged {@link Transfer}. The transfer
+ * completes once every byte of the file has been written. Each connection claims its byte range first, so that
+ * connections that disagree about the file or overlap another stripe are rejected.
+ */
+class StripedReceive {
+    private final CompletableFuture<File> destination;
+    private final long size;
+    private final int stripes;
+    private final AtomicLong remaining;
+    private final AtomicInteger finishedStripes;
+    private final TreeMap<Long, Long> claimed;
+    private final Set<Socket> sockets;
+    private int connections;
+    private volatile long lastActivity;
+    private FileChannel channel;
+    private Transfer transfer;
+    private boolean rejected;
+
+    /**
+     * Instantiate a new {@code StripedReceive}.
+     * @param destination the user's choice where to save the file, completing with {@code null} if rejected
+     * @param size the size (in bytes) of the whole file
+     * @param stripes the number of connections the file is sent over
+     */
+    StripedReceive(CompletableFuture<File> destination, long size, int stripes) {
+        this.destination = destination;
+        this.size = size;
+        this.stripes = stripes;
+        remaining = new AtomicLong(size);
+        finishedStripes = new AtomicInteger();
+        claimed = new TreeMap<>();
+        sockets = new HashSet<>();
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Claim the byte range of a connection. The connection must announce the same file size and stripe count as the
+     * first one, and its range must not overlap the range of another connection.
+     * @param socket the socket of the connection, which is closed if the transfer times out
+     * @param size the size (in bytes) of the whole file as announced by the connection
+     * @param stripes the number of connections as announced by the connection
+     * @param offset the offset of the stripe in the file
+     * @param length the length (in bytes) of the stripe
+     * @throws ProtocolException if the connection does not fit the transfer
+     */
+    synchronized void claim(Socket socket, long size, int stripes, long offset, long length)
+            throws ProtocolException {
+        if (size != this.size || stripes != this.stripes) {
+            throw new ProtocolException(String.format("Stripe of %d bytes in %d connections does not match %d in %d",
+                    size, stripes, this.size, this.stripes));
+        }
+        if (connections == stripes) {
+            throw new ProtocolException("More than " + stripes + " connections for the same transfer");
+        }
+        if (length > 0) {
+            Map.Entry<Long, Long> before = claimed.floorEntry(offset);
+            Long after = claimed.ceilingKey(offset);
+            if (before != null && before.getValue() > offset || after != null && after < offset + length) {
+                throw new ProtocolException(String.format("Stripe %d+%d overlaps another stripe", offset, length));
+            }
+            claimed.put(offset, offset + length);
+        }
+        connections++;
+        sockets.add(socket);
+        touch();
+    }
+
+    /**
+     * Wait for the user's decision and open the destination file on the first call.
+     * @param monitor called with the merged transfer once it has been created
+     * @return the merged transfer, or {@code null} if the user rejected the file
+     * @throws IOException if the destination file cannot be opened
+     */
+    synchronized Transfer start(Consumer<Transfer> monitor) throws IOException {
+        if (transfer == null && !rejected) {
+            File file = destination.join();
+            if (file == null) {
+                rejected = true;
+                return null;
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            transfer = new Transfer(file, size);
+            transfer.getCompletion().whenComplete((numBytes, e) -> close());
+            monitor.accept(transfer);
+            if (size == 0) transfer.complete();
+        }
+        return transfer;
+    }
+
+    /**
+     * Record that a stripe has been written completely. Completes the transfer once the whole file has been written.
+     * @param length the length of the stripe
+     */
+    void stripeWritten(long length) {
+        if (remaining.addAndGet(-length) == 0) {
+            transfer.complete();
+        }
+    }
+
+    /**
+     * Record that a connection of this transfer has finished, successfully or not.
+     * @param socket the socket of the connection
+     * @return {@code true} if all connections of the transfer have finished
+     */
+    boolean connectionFinished(Socket socket) {
+        synchronized (this) {
+            sockets.remove(socket);
+        }
+        touch();
+        return finishedStripes.incrementAndGet() == stripes;
+    }
+
+    /**
+     * Record that a connection made progress, which keeps the transfer from timing out.
+     */
+    void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Return whether the transfer has gone without activity for the given time. A transfer never times out while the
+     * user is still deciding where to save the file.
+     * @param timeout the idle timeout in milliseconds
+     * @return {@code true} if the transfer has timed out
+     */
+    boolean isIdle(long timeout) {
+        return destination.isDone() && System.nanoTime() - lastActivity > timeout * 1_000_000;
+    }
+
+    /**
+     * Fail the transfer after it timed out, and close the connections that are still open so that their reads fail.
+     * @param timeout the idle timeout in milliseconds
+     */
+    synchronized void expire(long timeout) {
+        if (transfer != null) {
+            transfer.fail(new IOException(String.format("Received %d of %d connections, no activity for %d ms",
+                    connections, stripes, timeout)));
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // the connection fails either way
+            }
+        }
+        sockets.clear();
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    private synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            transfer.fail(e);
+        }
+    }
+}
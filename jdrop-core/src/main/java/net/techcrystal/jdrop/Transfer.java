@@ -0,0 +1,232 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * The {@code Transfer} class is a handle to a single file transfer. The transfer engine reports progress through it
+ * and completes it once the file has been transferred, while the user interface observes the progress and may cancel
+ * the transfer. All methods are safe to call from any thread.
+ */
+public class Transfer {
+    private final File file;
+    private final long size;
+    private final long startTime;
+    private final AtomicLong bytesTransferred;
+    private final CompletableFuture<Long> completion;
+    private volatile Consumer<Transfer> onProgressListener;
+    private volatile LongConsumer meter;
+    private final RateLimiter limiter;
+    private volatile RateLimiter[] limiters;
+    private volatile IoSizeTuner tuner;
+
+    /**
+     * Instantiate a new {@code Transfer} of the given file.
+     * @param file the file being transferred
+     * @param size the size (in bytes) of the file
+     */
+    public Transfer(File file, long size) {
+        this.file = file;
+        this.size = size;
+        startTime = System.nanoTime();
+        bytesTransferred = new AtomicLong();
+        completion = new CompletableFuture<>();
+        limiter = new RateLimiter(0);
+        limiters = new RateLimiter[] {limiter};
+    }
+
+    /**
+     * Record that more bytes of the file have been transferred and notify the progress listener.
+     * @param numBytes the number of bytes transferred since the last call
+     */
+    public void addProgress(long numBytes) {
+        bytesTransferred.addAndGet(numBytes);
+        LongConsumer meter = this.meter;
+        if (meter != null) meter.accept(numBytes);
+        Consumer<Transfer> listener = onProgressListener;
+        if (listener != null) listener.accept(this);
+    }
+
+    /**
+     * Restart the progress at the given number of bytes and notify the progress listener. This is used when an
+     * interrupted outgoing transfer continues from where the receiver stopped.
+     * @param numBytes the number of bytes transferred so far
+     */
+    void setProgress(long numBytes) {
+        bytesTransferred.set(numBytes);
+        Consumer<Transfer> listener = onProgressListener;
+        if (listener != null) listener.accept(this);
+    }
+
+    /**
+     * Mark the transfer as successfully completed.
+     */
+    public void complete() {
+        completion.complete(bytesTransferred.get());
+    }
+
+    /**
+     * Mark the transfer as failed.
+     * @param cause the reason of the failure
+     */
+    public void fail(Throwable cause) {
+        completion.completeExceptionally(cause);
+    }
+
+    /**
+     * Cancel the transfer. The transfer engine stops transferring at the next opportunity.
+     * @return {@code true} if the transfer was still running and is now cancelled
+     */
+    public boolean cancel() {
+        return completion.cancel(false);
+    }
+
+    public boolean isCancelled() {
+        return completion.isCancelled();
+    }
+
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    /**
+     * Return a future that completes with the number of bytes transferred once the transfer succeeded, or
+     * exceptionally once it failed or was cancelled.
+     * @return the completion of this transfer
+     */
+    public CompletableFuture<Long> getCompletion() {
+        return completion;
+    }
+
+    public void setOnProgressListener(Consumer<Transfer> onProgressListener) {
+        this.onProgressListener = onProgressListener;
+    }
+
+    /**
+     * Set a counter that is also given the bytes of each progress report, see {@link Metrics}.
+     * @param meter the counter, or {@code null}
+     */
+    void setMeter(LongConsumer meter) {
+        this.meter = meter;
+    }
+
+    /**
+     * Return the limiter of this transfer alone, whose rate may be changed while the transfer runs. The transfer is
+     * also held to the limits of the server it runs on, see {@link ServerConfig#setSendLimit(long)}.
+     * @return the limiter of this transfer
+     */
+    public RateLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Set the limiters this transfer shares with others (e.g. one for all transfers and one per peer), in addition to
+     * its own.
+     * @param shared the shared limiters
+     */
+    void setSharedLimiters(RateLimiter... shared) {
+        RateLimiter[] all = new RateLimiter[shared.length + 1];
+        System.arraycopy(shared, 0, all, 0, shared.length);
+        all[shared.length] = limiter;
+        limiters = all;
+    }
+
+    /**
+     * Take the given bytes from all limiters of this transfer without waiting.
+     * @param numBytes the number of bytes that were transferred
+     * @return how long (in nanoseconds) to wait before transferring more, 0 if no wait is needed
+     */
+    long throttleDelay(long numBytes) {
+        long delay = 0;
+        for (RateLimiter limiter : limiters) {
+            delay = Math.max(delay, limiter.take(numBytes));
+        }
+        return delay;
+    }
+
+    /**
+     * Take the given bytes from all limiters of this transfer, and wait as long as the strictest of them requires.
+     * @param numBytes the number of bytes that were transferred
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    void throttle(long numBytes) throws InterruptedIOException {
+        RateLimiter.pause(throttleDelay(numBytes));
+    }
+
+    /**
+     * Let this transfer adapt the number of bytes it transfers at once, see {@link IoSizeTuner}.
+     * @param tuner the tuner of this transfer, or {@code null} to always transfer as much as the caller can
+     */
+    void setTuner(IoSizeTuner tuner) {
+        this.tuner = tuner;
+    }
+
+    /**
+     * Record how long the calls that moved one chunk of this transfer took, so that the next chunks can be sized.
+     * @param numBytes the number of bytes of the chunk
+     * @param nanos how long the reads and writes of the chunk took, not counting waits for a rate limit
+     */
+    void measure(long numBytes, long nanos) {
+        IoSizeTuner tuner = this.tuner;
+        if (tuner != null) tuner.record(numBytes, nanos);
+    }
+
+    /**
+     * Return how many bytes to transfer at once: the I/O unit this transfer has adapted to, held to its limits (see
+     * {@link RateLimiter#chunk(int)}).
+     * @param max the chunk size the caller can handle at most
+     * @return the chunk size
+     */
+    int chunk(int max) {
+        IoSizeTuner tuner = this.tuner;
+        if (tuner != null) max = Math.min(max, tuner.getSize());
+        for (RateLimiter limiter : limiters) {
+            max = limiter.chunk(max);
+        }
+        return max;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    /**
+     * Return the fraction of the file that has been transferred so far.
+     * @return a value between 0 and 1
+     */
+    public double getProgress() {
+        return size > 0 ? (double) bytesTransferred.get() / size : 1;
+    }
+
+    public long getElapsedNanos() {
+        return System.nanoTime() - startTime;
+    }
+}
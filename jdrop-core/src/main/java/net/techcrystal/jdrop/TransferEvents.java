@@ -0,0 +1,106 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import java.net.SocketAddress;
+
+/**
+ * The {@code TransferEvents} class emits Java Flight Recorder events for the lifecycle of connections and transfers,
+ * so that transfers can be profiled with JFR (e.g. {@code -XX:StartFlightRecording}) instead of from the log. The
+ * events are defined in {@link JfrTransferEvents}, which is only loaded if the runtime has JFR (Java 11, or Java 8
+ * from update 262); otherwise every method does nothing. While no recording is running, the events cost about as much
+ * as a field check.
+ */
+final class TransferEvents {
+    private static final boolean AVAILABLE = isAvailable();
+
+    private TransferEvents() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param peer the remote address of the connection
+     * @param localPort the local port the connection was accepted on
+     */
+    static void connectionAccepted(SocketAddress peer, int localPort) {
+        if (AVAILABLE) JfrTransferEvents.connectionAccepted(peer, localPort);
+    }
+
+    /**
+     * @param peer the remote address of the connection
+     * @param matched whether the code matched the current code
+     * @param nanos the time from accepting the connection until the code was read
+     */
+    static void codeVerified(SocketAddress peer, boolean matched, long nanos) {
+        if (AVAILABLE) JfrTransferEvents.codeVerified(peer, matched, nanos);
+    }
+
+    /**
+     * @param peer the remote address of the connection
+     * @param type the type of the connection, e.g. "FILE"
+     * @param name the name of the file or batch
+     * @param size the announced size (in bytes)
+     */
+    static void headerParsed(SocketAddress peer, String type, String name, long size) {
+        if (AVAILABLE) JfrTransferEvents.headerParsed(peer, type, name, size);
+    }
+
+    /**
+     * @param peer the remote address of the other end
+     * @param incoming whether the file is received rather than sent
+     * @param file the file being transferred
+     * @param size the size (in bytes) of the file
+     * @param offset the number of bytes that were transferred before, when resuming
+     */
+    static void transferStarted(SocketAddress peer, boolean incoming, String file, long size, long offset) {
+        if (AVAILABLE) JfrTransferEvents.transferStarted(peer, incoming, file, size, offset);
+    }
+
+    /**
+     * @param peer the remote address of the other end
+     * @param incoming whether the file was received rather than sent
+     * @param file the file that was transferred
+     * @param size the size (in bytes) of the file
+     * @param bytes the number of bytes transferred
+     * @param nanos the time the transfer took
+     * @param failure the reason the transfer failed, or {@code null} if it completed
+     * @param cancelled whether the transfer was cancelled
+     */
+    static void transferEnded(SocketAddress peer, boolean incoming, String file, long size, long bytes, long nanos,
+                              Throwable failure, boolean cancelled) {
+        if (AVAILABLE) JfrTransferEvents.transferEnded(peer, incoming, file, size, bytes, nanos, failure, cancelled);
+    }
+
+    /**
+     * Emit an event for a received chunk that was written to disk. Only a sample of the chunks is recorded, and
+     * every slow write.
+     * @param numBytes the size (in bytes) of the chunk
+     * @param nanos how long writing the chunk took
+     */
+    static void chunkWritten(int numBytes, long nanos) {
+        if (AVAILABLE) JfrTransferEvents.chunkWritten(numBytes, nanos);
+    }
+}
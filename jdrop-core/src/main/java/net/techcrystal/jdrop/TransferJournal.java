@@ -0,0 +1,133 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The {@code TransferJournal} class records how much of a file has been received so that an interrupted transfer can
+ * be resumed instead of starting over. The journal is a small properties file next to the partial file (with the
+ * suffix {@value #SUFFIX}) holding the identity of the sent file, its total size and the number of contiguous bytes
+ * received. It is replaced atomically on every update and deleted once the transfer completes.
+ * <p>
+ * The journal is only written after the bytes it covers have been handed to the operating system, so it never claims
+ * more than the partial file holds after the application dies. It does not force the file to the storage device; after
+ * a power loss the receiver checks the journal against the length of the partial file.
+ */
+class TransferJournal {
+    public static final String SUFFIX = ".jdrop-journal";
+    public static final long RECORD_INTERVAL = 4L * 1024 * 1024;
+
+    private final File file;
+    private final Path path;
+    private final String id;
+    private final long size;
+    private long received;
+    private long recorded;
+
+    private TransferJournal(File file, String id, long size, long received) {
+        this.file = file;
+        this.path = new File(file.getParentFile(), file.getName() + SUFFIX).toPath();
+        this.id = id;
+        this.size = size;
+        this.received = received;
+    }
+
+    /**
+     * Open the journal of a partial file. If there is no journal, or it belongs to a different file, a new journal
+     * starting at offset 0 is returned.
+     * @param file the destination file
+     * @param id the identity of the sent file
+     * @param size the size (in bytes) of the sent file
+     * @return the journal
+     */
+    static TransferJournal open(File file, String id, long size) {
+        TransferJournal journal = new TransferJournal(file, id, size, 0);
+        if (!Files.isRegularFile(journal.path)) return journal;
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(journal.path)) {
+            properties.load(in);
+            if (id.equals(properties.getProperty("id"))
+                    && size == Long.parseLong(properties.getProperty("size", "-1"))) {
+                long received = Long.parseLong(properties.getProperty("received", "0"));
+                journal.received = Math.max(0, Math.min(received, Math.min(file.length(), size)));
+                journal.recorded = journal.received;
+            }
+        } catch (IOException | NumberFormatException e) {
+            Server.LOG.warning("Ignoring unreadable transfer journal " + journal.path + ": " + e);
+        }
+        return journal;
+    }
+
+    /**
+     * Report progress of the transfer. The journal is only written once every {@link #RECORD_INTERVAL} bytes, and not
+     * at all once the file is complete.
+     * @param received the number of bytes received from the start of the file
+     * @throws IOException if the journal cannot be written
+     */
+    void update(long received) throws IOException {
+        if (received < size && received - recorded >= RECORD_INTERVAL) {
+            record(received);
+        }
+    }
+
+    /**
+     * Record the number of contiguous bytes of the file that have been received.
+     * @param received the number of bytes received from the start of the file
+     * @throws IOException if the journal cannot be written
+     */
+    void record(long received) throws IOException {
+        this.received = received;
+        recorded = received;
+        Properties properties = new Properties();
+        properties.setProperty("id", id);
+        properties.setProperty("size", Long.toString(size));
+        properties.setProperty("received", Long.toString(received));
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, "JDrop transfer journal of " + file.getName());
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete the journal, e.g. once the transfer has completed.
+     * @throws IOException if the journal exists but cannot be deleted
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    String getId() {
+        return id;
+    }
+
+    /**
+     * Return the offset the transfer resumes from.
+     * @return the number of contiguous bytes of the file that have been received
+     */
+    long getReceived() {
+        return received;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The {@code TransferListener} interface is how a {@link Server} interacts with its user: it decides where incoming
+ * files are saved, observes incoming transfers and texts, and learns the verification code to show to senders. The
+ * server itself has no user interface, so the same transport can be driven by the JavaFX application or run headless.
+ * <p>
+ * Methods are called on the server's worker or selector threads; implementations that update a user interface must
+ * hand the work over to its thread.
+ */
+public interface TransferListener {
+    /**
+     * Decide whether to accept an incoming file and where to save it. The decision may be made asynchronously, e.g. by
+     * asking the user, but this method itself must return promptly. The {@link ServerConfig.Engine#NIO} engine waits
+     * for the future without holding a thread for plain files; otherwise the worker thread of the connection waits
+     * for it, so every pending decision occupies one of the {@link ServerConfig#getMaxConcurrency()} workers.
+     * @param filename the name of the incoming file as announced by the sender
+     * @param size the size (in bytes) of the incoming file
+     * @return a future that completes with the file to save to, or {@code null} to reject the file
+     */
+    CompletableFuture<File> chooseDestination(String filename, long size);
+
+    /**
+     * Called when an accepted file starts to be received. The listener may observe the progress and completion of the
+     * transfer, or cancel it. Failures are also reported to the error listener of the server.
+     * @param transfer the incoming transfer
+     */
+    void transferStarted(Transfer transfer);
+
+    /**
+     * Called when a file (or batch of files) starts to be sent, which for a submitted send is when it leaves the send
+     * queue. The listener may observe the progress and completion of the transfer, or cancel it. Failures are also
+     * reported to the error listener of the server.
+     * @param transfer the outgoing transfer
+     */
+    default void sendStarted(Transfer transfer) {
+    }
+
+    /**
+     * Called when a text has been received.
+     * @param text the text
+     */
+    void textReceived(String text);
+
+    /**
+     * Called when the verification code that senders must supply has changed.
+     * @param code the new code
+     */
+    default void codeChanged(String code) {
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.util.StringJoiner;
+
+/**
+ * The {@code TransferOptions} class holds the options of an "XFILE" connection (see {@link Server}), which travel as
+ * a comma-separated list: the sender offers options in its header and the receiver answers with those it accepted.
+ * Unknown options are ignored, so that newer senders can talk to older receivers.
+ */
+class TransferOptions {
+    public static final String RESUME = "resume";
+    public static final String CRC32C = "crc32c";
+    public static final String DEDUP = "dedup";
+    public static final String DELTA = "delta";
+
+    boolean resume;
+    boolean verify;
+    boolean dedup;
+    boolean delta;
+    Codec codec;
+
+    /**
+     * Parse a list of options. Only the first codec known to {@link Codecs} is taken.
+     * @param field the comma-separated options
+     * @return the options
+     */
+    static TransferOptions parse(String field) {
+        TransferOptions options = new TransferOptions();
+        for (String option : field.split(",")) {
+            if (option.equals(RESUME)) {
+                options.resume = true;
+            } else if (option.equals(CRC32C)) {
+                options.verify = true;
+            } else if (option.equals(DEDUP)) {
+                options.dedup = true;
+            } else if (option.equals(DELTA)) {
+                options.delta = true;
+            } else if (options.codec == null && !option.isEmpty()) {
+                options.codec = Codecs.get(option);
+            }
+        }
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(",");
+        if (resume) joiner.add(RESUME);
+        if (verify) joiner.add(CRC32C);
+        if (dedup) joiner.add(DEDUP);
+        if (delta) joiner.add(DELTA);
+        if (codec != null) joiner.add(codec.getName());
+        return joiner.toString();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.IOException;
+
+/**
+ * Signals that the receiver of a file closed the connection instead of accepting the file, usually because its user
+ * declined it. A send that fails with this exception did not deliver the file.
+ */
+public class TransferRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Instantiate a new {@code TransferRejectedException}.
+     * @param message the detail message
+     */
+    public TransferRejectedException(String message) {
+        super(message);
+    }
+}
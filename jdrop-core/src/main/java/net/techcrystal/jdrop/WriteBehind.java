@@ -0,0 +1,200 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * The {@code WriteBehind} class decouples receiving a file from writing it to disk. The receiving thread fills buffers
+ * from a bounded ring and submits them, and a dedicated writer thread writes them to the file in order and returns
+ * them to the ring. A disk that stalls (e.g. while flushing its cache) therefore only holds up the network once all
+ * buffers of the ring are waiting to be written; every such wait is reported as a stall. The buffers of the ring are
+ * leased from a {@link BufferPool} and returned to it once the writer has finished.
+ */
+class WriteBehind implements Closeable {
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final long POLL_INTERVAL = 100;
+
+    /**
+     * Receives the number of bytes written after each buffer and how long writing it took, on the writer thread.
+     */
+    interface Progress {
+        void written(int numBytes, long nanos) throws IOException;
+    }
+
+    private final FileChannel out;
+    private final Progress progress;
+    private final LongConsumer onStall;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final BufferPool buffers;
+    private final Set<ByteBuffer> owned = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile IOException failure;
+    private long position;
+    private boolean closed;
+
+    /**
+     * Start writing behind a receiving thread.
+     * @param out the file to write to
+     * @param position the position to write the first buffer at
+     * @param depth the number of buffers in the ring
+     * @param bufferSize the minimum capacity of each buffer at first
+     * @param buffers the pool to lease the buffers from
+     * @param executor the executor to run the writer thread on
+     * @param progress called after each buffer has been written
+     * @param onStall called with the nanoseconds the receiving thread waited for a free buffer
+     */
+    WriteBehind(FileChannel out, long position, int depth, int bufferSize, BufferPool buffers, Executor executor,
+                Progress progress, LongConsumer onStall) {
+        this.out = out;
+        this.position = position;
+        this.progress = progress;
+        this.onStall = onStall;
+        this.buffers = buffers;
+        free = new ArrayBlockingQueue<>(depth);
+        filled = new ArrayBlockingQueue<>(depth + 1);
+        for (int i = 0; i < depth; i++) {
+            ByteBuffer buffer = buffers.acquire(bufferSize);
+            owned.add(buffer);
+            free.add(buffer);
+        }
+        try {
+            executor.execute(this::write);
+        } catch (RejectedExecutionException e) {
+            releaseAll();
+            throw e;
+        }
+    }
+
+    /**
+     * Take an empty buffer, waiting while all buffers are waiting to be written.
+     * @param size the minimum capacity of the buffer, see {@link BufferPool#resize(ByteBuffer, int)}
+     * @return a cleared buffer
+     * @throws IOException if writing an earlier buffer failed
+     */
+    ByteBuffer next(int size) throws IOException {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            long start = System.nanoTime();
+            try {
+                while (buffer == null) {
+                    checkFailure();
+                    if (done.getCount() == 0) throw new InterruptedIOException("Disk writer stopped");
+                    buffer = free.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the disk");
+            }
+            onStall.accept(System.nanoTime() - start);
+        }
+        checkFailure();
+        ByteBuffer resized = buffers.resize(buffer, size);
+        if (resized != buffer) {
+            owned.remove(buffer);
+            owned.add(resized);
+        }
+        resized.clear();
+        return resized;
+    }
+
+    /**
+     * Queue a filled buffer for writing. The buffer must not be used by the caller afterwards.
+     * @param buffer a buffer obtained from {@link #next(int)}, filled up to its position
+     */
+    void submit(ByteBuffer buffer) {
+        buffer.flip();
+        filled.add(buffer);
+    }
+
+    /**
+     * Wait until all submitted buffers have been written, and return the buffers to the pool.
+     * @throws IOException if writing a buffer failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        filled.add(END);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        releaseAll();
+        checkFailure();
+    }
+
+    private void releaseAll() {
+        for (ByteBuffer buffer : owned) {
+            buffers.release(buffer);
+        }
+        owned.clear();
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) throw new IOException("Writing to disk failed", e);
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                ByteBuffer buffer = filled.take();
+                if (buffer == END) return;
+                if (failure == null) {
+                    try {
+                        int numBytes = buffer.remaining();
+                        long start = System.nanoTime();
+                        while (buffer.hasRemaining()) {
+                            position += out.write(buffer, position);
+                        }
+                        progress.written(numBytes, System.nanoTime() - start);
+                    } catch (IOException e) {
+                        // keep taking buffers so that the receiving thread notices the failure instead of blocking
+                        failure = e;
+                    }
+                }
+                free.add(buffer);
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Disk writer interrupted");
+        } finally {
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.net.ProtocolException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static net.techcrystal.jdrop.Loopback.CODE;
+import static net.techcrystal.jdrop.Loopback.HOST;
+import static net.techcrystal.jdrop.Loopback.await;
+import static net.techcrystal.jdrop.Loopback.header;
+import static net.techcrystal.jdrop.Loopback.send;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for directory trees sent over a single connection with the {@code BATCH} header.
+ */
+public class BatchTransferTest {
+
+    @Test
+    public void roundTripBlocking() throws Exception {
+        roundTrip(ServerConfig.Engine.BLOCKING);
+    }
+
+    @Test
+    public void roundTripNio() throws Exception {
+        roundTrip(ServerConfig.Engine.NIO);
+    }
+
+    private void roundTrip(ServerConfig.Engine engine) throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig().setEngine(engine))) {
+            String[] names = {"tree/a.txt", "tree/empty", "tree/sub/b.bin", "tree/sub/deep/c.txt"};
+            int[] sizes = {10, 0, 2 * 1024 * 1024 + 1, 300};
+            for (int i = 0; i < names.length; i++) {
+                Files.createDirectories(new File(loopback.getOutbox(), names[i]).getParentFile().toPath());
+                loopback.createFile(names[i], sizes[i], i);
+            }
+            File tree = new File(loopback.getOutbox(), "tree");
+            Server sender = loopback.sender(new ServerConfig(), new LinkedBlockingQueue<>());
+            Transfer sent = sender.submitFiles(HOST, CODE, Collections.singletonList(tree));
+            Transfer received = loopback.nextTransfer();
+            assertNull(await(received));
+            assertNull(await(sent));
+            sender.interrupt();
+            assertEquals(sent.getSize(), received.getSize());
+            for (String name : names) {
+                assertArrayEquals(name, Files.readAllBytes(new File(loopback.getOutbox(), name).toPath()),
+                        Files.readAllBytes(new File(loopback.getInbox(), name).toPath()));
+            }
+        }
+    }
+
+    @Test
+    public void rejectsFileExceedingTotal() throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig())) {
+            send(header(CODE, "BATCH", "x", 2, 10, "a", 5, "b", 6), new byte[11]);
+            assertProtocolError(loopback, "exceeds the total");
+            send(header(CODE, "BATCH", "x", 1, 10, "a", Long.MAX_VALUE), new byte[10]);
+            assertProtocolError(loopback, "exceeds the total");
+        }
+    }
+
+    @Test
+    public void rejectsSizesNotAddingUp() throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig())) {
+            send(header(CODE, "BATCH", "x", 1, 10, "a", 5), new byte[10]);
+            assertProtocolError(loopback, "add up to 5 bytes instead of 10");
+        }
+    }
+
+    @Test
+    public void readsOnlyEntriesThatArrive() throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig())) {
+            // the count alone must not make the receiver allocate for two billion entries
+            send(header(CODE, "BATCH", "x", 2000000000, 10, "a", 5, "b", 5));
+            assertEquals(EOFException.class, loopback.nextError().getClass());
+        }
+    }
+
+    @Test
+    public void rejectsPathsOutsideBatch() throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig())) {
+            Path outside = loopback.getInbox().toPath().resolve("escaped");
+            for (String path : new String[] {"../escaped", "a/../../escaped", outside.toString(), ".", ""}) {
+                send(header(CODE, "BATCH", "x", 1, 1, path, 1), new byte[1]);
+                assertProtocolError(loopback, "leaves the batch directory");
+            }
+            assertFalse(Files.exists(outside));
+            assertFalse(Files.exists(loopback.getInbox().toPath().resolve("x")));
+        }
+    }
+
+    private static void assertProtocolError(Loopback loopback, String message) throws InterruptedException {
+        Throwable error = loopback.nextError();
+        assertEquals(ProtocolException.class, error.getClass());
+        assertTrue(error.getMessage(), error.getMessage().contains(message));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link Crc32c}.
+ */
+public class Crc32cTest {
+
+    @Test
+    public void matchesCheckValue() {
+        byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        Checksum table = new Crc32c();
+        table.update(data, 0, data.length);
+        assertEquals(0xE3069283L, table.getValue());
+        Checksum checksum = Crc32c.create();
+        checksum.update(data, 0, data.length);
+        assertEquals(0xE3069283L, checksum.getValue());
+    }
+
+    @Test
+    public void matchesJdkImplementation() {
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        Checksum table = new Crc32c();
+        Checksum checksum = Crc32c.create();
+        for (int length : new int[] {0, 1, 7, 4096, data.length}) {
+            table.reset();
+            checksum.reset();
+            table.update(data, 0, length);
+            checksum.update(data, 0, length);
+            assertEquals(checksum.getValue(), table.getValue());
+        }
+        table.reset();
+        for (byte b : data) table.update(b);
+        assertEquals(checksum.getValue(), table.getValue());
+    }
+}
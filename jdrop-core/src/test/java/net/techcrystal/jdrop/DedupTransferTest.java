@@ -0,0 +1,179 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static net.techcrystal.jdrop.Loopback.CODE;
+import static net.techcrystal.jdrop.Loopback.HOST;
+import static net.techcrystal.jdrop.Loopback.await;
+import static net.techcrystal.jdrop.Loopback.header;
+import static net.techcrystal.jdrop.Loopback.negotiate;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for files sent in content-defined chunks with the "dedup" option.
+ */
+public class DedupTransferTest {
+    private Path store;
+
+    @Before
+    public void createStore() throws IOException {
+        store = Files.createTempDirectory("jdrop-store");
+    }
+
+    @After
+    public void deleteStore() throws IOException {
+        Loopback.delete(store);
+    }
+
+    @Test
+    public void roundTripBlocking() throws Exception {
+        roundTrip(ServerConfig.Engine.BLOCKING, null);
+    }
+
+    @Test
+    public void roundTripNio() throws Exception {
+        roundTrip(ServerConfig.Engine.NIO, null);
+    }
+
+    @Test
+    public void roundTripCompressed() throws Exception {
+        roundTrip(ServerConfig.Engine.BLOCKING, "deflate");
+    }
+
+    private void roundTrip(ServerConfig.Engine engine, String codec) throws Exception {
+        try (Loopback loopback = new Loopback(receiver().setEngine(engine))) {
+            Server sender = loopback.sender(new ServerConfig().setDedup(true).setCodec(codec),
+                    new LinkedBlockingQueue<>());
+            File file = loopback.createFile("dedup.bin", 4 * Chunker.MAX_CHUNK, 1);
+            send(loopback, sender, file);
+            long sent = sender.getMetrics().getBytesSent();
+            assertEquals(file.length(), sent);
+
+            byte[] data = Files.readAllBytes(file.toPath());
+            data[data.length / 2] ^= 1;
+            Files.write(file.toPath(), data);
+            send(loopback, sender, file);
+            // only the chunk around the changed byte is sent again
+            assertTrue(sender.getMetrics().getBytesSent() - sent <= Chunker.MAX_CHUNK);
+            sender.interrupt();
+        }
+    }
+
+    private static void send(Loopback loopback, Server sender, File file) throws Exception {
+        Transfer sent = sender.submitFile(HOST, CODE, file);
+        assertNull(await(loopback.nextTransfer()));
+        assertNull(await(sent));
+        assertArrayEquals(Files.readAllBytes(file.toPath()),
+                Files.readAllBytes(new File(loopback.getInbox(), file.getName()).toPath()));
+    }
+
+    @Test
+    public void rejectsInvalidChunkCount() throws Exception {
+        assertReceiverFails(10, header(2000000000), ProtocolException.class, "Invalid count");
+    }
+
+    @Test
+    public void readsOnlyChunksThatArrive() throws Exception {
+        // a count that fits a huge file must not make the receiver allocate for all of its chunks
+        long size = Long.MAX_VALUE / 2;
+        byte[] list = header(size / Chunker.MIN_CHUNK, "00", Chunker.MAX_CHUNK, "01", Chunker.MAX_CHUNK);
+        assertReceiverFails(size, list, EOFException.class, "Connection closed");
+    }
+
+    @Test
+    public void rejectsInvalidChunkLength() throws Exception {
+        assertReceiverFails(Chunker.MAX_CHUNK + 1, header(1, "00", Chunker.MAX_CHUNK + 1), ProtocolException.class,
+                "Invalid chunk length");
+        assertReceiverFails(2 * Chunker.MIN_CHUNK, header(2, "00", Chunker.MIN_CHUNK + 1, "01", Chunker.MIN_CHUNK),
+                ProtocolException.class, "Invalid chunk length");
+        assertReceiverFails(100, header(1, "00", 0), ProtocolException.class, "Invalid chunk length");
+        assertReceiverFails(100, header(1, "00", 50), ProtocolException.class, "add up to 50 bytes");
+    }
+
+    private void assertReceiverFails(long size, byte[] list, Class<? extends Throwable> type, String message)
+            throws Exception {
+        try (Loopback loopback = new Loopback(receiver())) {
+            try (Socket socket = new Socket(HOST, Server.DEFAULT_PORT)) {
+                negotiate(socket, TransferOptions.DEDUP, "x.bin", size);
+                socket.getOutputStream().write(list);
+                socket.shutdownOutput();
+                Throwable cause = await(loopback.nextTransfer());
+                assertEquals(type, cause.getClass());
+                assertTrue(cause.getMessage(), cause.getMessage().contains(message));
+            }
+        }
+    }
+
+    @Test
+    public void senderRejectsInvalidRequests() throws Exception {
+        assertSenderRejects(header(5), "asked for 5 of");
+        assertSenderRejects(header(1, 4), "chunk 4 out of order or out of range");
+        assertSenderRejects(header(2, 1, 1), "chunk 1 out of order or out of range");
+        assertSenderRejects(header(2, 2, 1), "chunk 1 out of order or out of range");
+    }
+
+    private static void assertSenderRejects(byte[] answer, String message) throws Exception {
+        File file = File.createTempFile("jdrop-test", ".bin");
+        try (ServerSocket listener = Loopback.listen()) {
+            // three chunks at least, since no chunk is longer than MAX_CHUNK
+            Files.write(file.toPath(), new byte[3 * Chunker.MAX_CHUNK]);
+            PrintStream out = new PrintStream(new ByteArrayOutputStream());
+            Server sender = new Server(new ServerConfig().setDedup(true).setResume(false).setMetricsInterval(0),
+                    new DirectoryTransferListener(file.getParentFile(), out), e -> { });
+            Transfer sent = sender.submitFile(HOST, CODE, file);
+            try (Socket socket = listener.accept()) {
+                socket.setSoTimeout((int) Loopback.TIMEOUT);
+                HeaderDecoder header = new HeaderDecoder(1024).reset(socket.getInputStream());
+                for (int i = 0; i < 6; i++) header.next();
+                socket.getOutputStream().write(header(TransferOptions.DEDUP, 0));
+                header.next();
+                for (long i = 2 * header.fieldAsLong(); i > 0; i--) header.next();
+                socket.getOutputStream().write(answer);
+                Throwable cause = await(sent);
+                assertEquals(ProtocolException.class, cause.getClass());
+                assertTrue(cause.getMessage(), cause.getMessage().contains(message));
+            }
+            sender.interrupt();
+        } finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    private ServerConfig receiver() {
+        return new ServerConfig().setChunkStore(store.toFile());
+    }
+}
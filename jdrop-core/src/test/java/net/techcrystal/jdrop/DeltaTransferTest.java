@@ -0,0 +1,184 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static net.techcrystal.jdrop.Loopback.CODE;
+import static net.techcrystal.jdrop.Loopback.HOST;
+import static net.techcrystal.jdrop.Loopback.await;
+import static net.techcrystal.jdrop.Loopback.header;
+import static net.techcrystal.jdrop.Loopback.negotiate;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for files sent as a delta against the receiver's previous version with the "delta" option.
+ */
+public class DeltaTransferTest {
+    private static final int BASIS_SIZE = 100 * 1024;
+
+    @Test
+    public void roundTripBlocking() throws Exception {
+        roundTrip(ServerConfig.Engine.BLOCKING, null);
+    }
+
+    @Test
+    public void roundTripNio() throws Exception {
+        roundTrip(ServerConfig.Engine.NIO, null);
+    }
+
+    @Test
+    public void roundTripCompressed() throws Exception {
+        roundTrip(ServerConfig.Engine.BLOCKING, "deflate");
+    }
+
+    private void roundTrip(ServerConfig.Engine engine, String codec) throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig().setEngine(engine))) {
+            File file = loopback.createFile("delta.bin", 4 * 1024 * 1024, 1);
+            File previous = new File(loopback.getInbox(), file.getName());
+            Files.copy(file.toPath(), previous.toPath());
+            byte[] data = Files.readAllBytes(file.toPath());
+            byte[] inserted = new byte[1000];
+            new Random(2).nextBytes(inserted);
+            byte[] updated = new byte[data.length + inserted.length];
+            System.arraycopy(data, 0, updated, 0, data.length / 2);
+            System.arraycopy(inserted, 0, updated, data.length / 2, inserted.length);
+            System.arraycopy(data, data.length / 2, updated, data.length / 2 + inserted.length, data.length / 2);
+            Files.write(file.toPath(), updated);
+
+            Server sender = loopback.sender(new ServerConfig().setDelta(true).setCodec(codec),
+                    new LinkedBlockingQueue<>());
+            Transfer sent = sender.submitFile(HOST, CODE, file);
+            assertNull(await(loopback.nextTransfer()));
+            assertNull(await(sent));
+            // the insertion and the blocks it overlaps are sent as literals, the rest is copied from the basis
+            assertTrue(sender.getMetrics().getBytesSent() < updated.length / 10);
+            sender.interrupt();
+            assertArrayEquals(updated, Files.readAllBytes(previous.toPath()));
+            assertFalse(Files.exists(Delta.rebuilt(previous)));
+        }
+    }
+
+    @Test
+    public void rejectsCopyBeyondBasis() throws Exception {
+        int blocks = (BASIS_SIZE + Delta.blockSize(BASIS_SIZE) - 1) / Delta.blockSize(BASIS_SIZE);
+        assertReceiverFails(BASIS_SIZE, out -> {
+            out.writeByte(Delta.COPY);
+            out.writeInt(0);
+            out.writeInt(blocks + 1);
+        }, ProtocolException.class, "Invalid copy");
+        assertReceiverFails(BASIS_SIZE, out -> {
+            out.writeByte(Delta.COPY);
+            out.writeInt(-1);
+            out.writeInt(1);
+        }, ProtocolException.class, "Invalid copy");
+        assertReceiverFails(BASIS_SIZE - 1, out -> {
+            out.writeByte(Delta.COPY);
+            out.writeInt(0);
+            out.writeInt(blocks);
+        }, ProtocolException.class, "Delta exceeds");
+    }
+
+    @Test
+    public void rejectsLiteralBeyondSize() throws Exception {
+        assertReceiverFails(10, out -> {
+            out.writeByte(Delta.LITERAL);
+            out.writeInt(11);
+            out.write(new byte[11]);
+        }, ProtocolException.class, "Invalid literal");
+        assertReceiverFails(BASIS_SIZE, out -> {
+            out.writeByte(Delta.LITERAL);
+            out.writeInt(Delta.MAX_LITERAL + 1);
+        }, ProtocolException.class, "Invalid literal");
+    }
+
+    @Test
+    public void rejectsWrongChecksum() throws Exception {
+        int blocks = (BASIS_SIZE + Delta.blockSize(BASIS_SIZE) - 1) / Delta.blockSize(BASIS_SIZE);
+        assertReceiverFails(BASIS_SIZE, out -> {
+            out.writeByte(Delta.COPY);
+            out.writeInt(0);
+            out.writeInt(blocks);
+            out.writeByte(Delta.END);
+            out.write(new byte[16]);
+        }, IOException.class, "does not match");
+        assertReceiverFails(BASIS_SIZE, out -> {
+            out.writeByte(Delta.END);
+            out.write(new byte[16]);
+        }, ProtocolException.class, "Delta ended after 0");
+        assertReceiverFails(BASIS_SIZE, out -> out.writeByte('X'), ProtocolException.class, "Unknown delta");
+    }
+
+    private static void assertReceiverFails(long size, Instructions instructions, Class<? extends Throwable> type,
+                                            String message) throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig())) {
+            byte[] basis = new byte[BASIS_SIZE];
+            new Random(1).nextBytes(basis);
+            File file = new File(loopback.getInbox(), "x.bin");
+            Files.write(file.toPath(), basis);
+            try (Socket socket = new Socket(HOST, Server.DEFAULT_PORT)) {
+                HeaderDecoder reply = negotiate(socket, TransferOptions.DELTA, file.getName(), size);
+                Delta.Signatures signatures = Delta.readSignatures(reply);
+                assertEquals(BASIS_SIZE, signatures.basisSize);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                instructions.write(out);
+                out.flush();
+                socket.shutdownOutput();
+                Throwable cause = await(loopback.nextTransfer());
+                assertEquals(type, cause.getClass());
+                assertTrue(cause.getMessage(), cause.getMessage().contains(message));
+            }
+            // the previous version survives a failed delta, and the partly rebuilt file is discarded
+            assertArrayEquals(basis, Files.readAllBytes(file.toPath()));
+            assertFalse(Files.exists(Delta.rebuilt(file)));
+        }
+    }
+
+    @Test
+    public void rejectsMalformedSignatures() {
+        assertSignaturesRejected(header(Delta.MIN_BLOCK - 1, 0), "Invalid block size");
+        assertSignaturesRejected(header(Delta.MAX_BLOCK + 1, 0), "Invalid block size");
+        assertSignaturesRejected(header(Delta.MIN_BLOCK, 10, "abc"), "Invalid block signature");
+        assertSignaturesRejected(header(Delta.MIN_BLOCK, "x"), "Invalid numeric header field");
+    }
+
+    private static void assertSignaturesRejected(byte[] signatures, String message) {
+        HeaderDecoder reply = new HeaderDecoder(1024).reset(new ByteArrayInputStream(signatures));
+        ProtocolException e = assertThrows(ProtocolException.class, () -> Delta.readSignatures(reply));
+        assertTrue(e.getMessage(), e.getMessage().contains(message));
+    }
+
+    private interface Instructions {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link HeaderDecoder}.
+ */
+public class HeaderDecoderTest {
+
+    @Test
+    public void decodesFieldsSplitAcrossBuffers() throws IOException {
+        HeaderDecoder decoder = new HeaderDecoder();
+        assertFalse(decoder.decode(ascii("1234")));
+        ByteBuffer rest = ascii("56\0FILE\0");
+        assertTrue(decoder.decode(rest));
+        assertTrue(decoder.fieldEquals("123456"));
+        assertEquals(123456, decoder.fieldAsLong());
+        assertTrue(decoder.decode(rest));
+        assertTrue(decoder.fieldEquals("FILE"));
+        assertFalse(rest.hasRemaining());
+    }
+
+    @Test
+    public void readsStreamInSmallBlocks() throws IOException {
+        HeaderDecoder decoder = new HeaderDecoder(3).reset(stream("123456\0FILE\0a.txt\0" + "5\0hello"));
+        for (String expected : new String[] {"123456", "FILE", "a.txt", "5"}) {
+            decoder.next();
+            assertEquals(expected, decoder.fieldAsString());
+        }
+        assertArrayEquals("hello".getBytes(StandardCharsets.US_ASCII), readAll(decoder.body()));
+    }
+
+    @Test
+    public void handsReadAheadToBody() throws IOException {
+        byte[] readAhead = "12".getBytes(StandardCharsets.US_ASCII);
+        HeaderDecoder decoder = new HeaderDecoder(1024).reset(stream("3456\0FILE\0payload"), readAhead);
+        decoder.next();
+        assertTrue(decoder.fieldEquals("123456"));
+        decoder.next();
+        assertTrue(decoder.fieldEquals("FILE"));
+        ByteBuffer target = ByteBuffer.allocate(3);
+        assertEquals(3, decoder.drainBody(target));
+        assertArrayEquals("pay".getBytes(StandardCharsets.US_ASCII), target.array());
+        assertArrayEquals("load".getBytes(StandardCharsets.US_ASCII), readAll(decoder.body()));
+    }
+
+    @Test
+    public void rejectsLongField() {
+        char[] chars = new char[HeaderDecoder.MAX_FIELD + 1];
+        Arrays.fill(chars, 'a');
+        HeaderDecoder decoder = new HeaderDecoder(1024).reset(stream(new String(chars) + "\0"));
+        assertThrows(ProtocolException.class, decoder::next);
+    }
+
+    @Test
+    public void acceptsFieldOfMaximumLength() throws IOException {
+        char[] chars = new char[HeaderDecoder.MAX_FIELD];
+        Arrays.fill(chars, '9');
+        HeaderDecoder decoder = new HeaderDecoder(1024).reset(stream(new String(chars) + "\0"));
+        decoder.next();
+        assertEquals(HeaderDecoder.MAX_FIELD, decoder.fieldAsString().length());
+    }
+
+    @Test
+    public void failsOnTruncatedHeader() throws IOException {
+        HeaderDecoder decoder = new HeaderDecoder(1024).reset(stream("123456\0FI"));
+        decoder.next();
+        assertThrows(EOFException.class, decoder::next);
+    }
+
+    @Test
+    public void rejectsInvalidNumbers() throws IOException {
+        String[] fields = {"", "-1", "12a", " 1", "9223372036854775808", "99999999999999999999"};
+        HeaderDecoder decoder = new HeaderDecoder();
+        for (String field : fields) {
+            assertTrue(decoder.decode(ascii(field + "\0")));
+            assertThrows(field, ProtocolException.class, decoder::fieldAsLong);
+        }
+        assertTrue(decoder.decode(ascii("9223372036854775807\0")));
+        assertEquals(Long.MAX_VALUE, decoder.fieldAsLong());
+    }
+
+    private static ByteBuffer ascii(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static InputStream stream(String value) {
+        return new ByteArrayInputStream(value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[64];
+        int length = 0;
+        for (int numBytes; (numBytes = in.read(buffer, length, buffer.length - length)) > 0; ) length += numBytes;
+        return Arrays.copyOf(buffer, length);
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * A receiving {@link Server} on the loopback interface for tests, which collects the transfers it starts and the
+ * errors it reports. Files are received into {@link #getInbox()}; files to send can be created in
+ * {@link #getOutbox()}.
+ */
+class Loopback implements AutoCloseable {
+    static final String HOST = "127.0.0.1";
+    static final String CODE = "123456";
+    static final long TIMEOUT = 20000;
+
+    private final Path root;
+    private final File inbox;
+    private final File outbox;
+    private final PrintStream out = new PrintStream(new ByteArrayOutputStream());
+    private final Server server;
+    private final BlockingQueue<Transfer> transfers = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+
+    /**
+     * Start a receiving server with the given configuration and wait until it accepts connections.
+     * @param config the configuration of the receiver; its code is set to {@link #CODE}
+     */
+    Loopback(ServerConfig config) throws IOException, InterruptedException {
+        root = Files.createTempDirectory("jdrop-test");
+        inbox = Files.createDirectory(root.resolve("in")).toFile();
+        outbox = Files.createDirectory(root.resolve("out")).toFile();
+        server = new Server(config.setCode(CODE).setMetricsInterval(0), new DirectoryTransferListener(inbox, out) {
+            @Override
+            public void transferStarted(Transfer transfer) {
+                transfers.add(transfer);
+            }
+        }, errors::add);
+        server.start();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (true) {
+            try {
+                // a wrong code makes the receiver close the connection without reporting an error
+                send(header("-"));
+                break;
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /**
+     * Create a sending server. It is not started, so it does not compete with the receiver for the port.
+     * @param config the configuration of the sender
+     * @param errors the queue to collect the errors of the sender in
+     * @return the sender
+     */
+    Server sender(ServerConfig config, BlockingQueue<Throwable> errors) {
+        return new Server(config.setMetricsInterval(0), new DirectoryTransferListener(outbox, out), errors::add);
+    }
+
+    /**
+     * Listen on the port of the protocol in place of a receiver, to play the receiving side of a connection by hand.
+     * @return the listening socket, which accepts with a timeout of {@link #TIMEOUT}
+     */
+    static ServerSocket listen() throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.setSoTimeout((int) TIMEOUT);
+        listener.bind(new InetSocketAddress(HOST, Server.DEFAULT_PORT));
+        return listener;
+    }
+
+    /**
+     * Send an "XFILE" header in place of a sender and read the reply of the receiver.
+     * @param socket the connection to the receiver
+     * @param options the options to ask for, which the receiver must accept
+     * @param filename the name of the file
+     * @param size the size (in bytes) of the file
+     * @return the decoder of the receiver's replies, positioned after the offset
+     */
+    static HeaderDecoder negotiate(Socket socket, String options, String filename, long size) throws IOException {
+        socket.setSoTimeout((int) TIMEOUT);
+        socket.getOutputStream().write(header(CODE, "XFILE", options, filename, size, "id"));
+        HeaderDecoder reply = new HeaderDecoder(1024).reset(socket.getInputStream());
+        reply.next();
+        assertEquals(options, reply.fieldAsString());
+        reply.next();
+        assertEquals(0, reply.fieldAsLong());
+        return reply;
+    }
+
+    /**
+     * Join header fields with the null terminator of the protocol.
+     * @param fields the fields
+     * @return the encoded header
+     */
+    static byte[] header(Object... fields) {
+        StringBuilder builder = new StringBuilder();
+        for (Object field : fields) builder.append(field).append('\u0000');
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Connect to the receiver, write the given bytes and read until the receiver closes the connection.
+     * @param data the bytes to write, usually a header followed by a payload
+     * @return the bytes the receiver replied with
+     */
+    static byte[] send(byte[]... data) throws IOException {
+        try (Socket socket = new Socket(HOST, Server.DEFAULT_PORT)) {
+            socket.setSoTimeout((int) TIMEOUT);
+            OutputStream out = socket.getOutputStream();
+            for (byte[] bytes : data) out.write(bytes);
+            out.flush();
+            socket.shutdownOutput();
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[8192];
+            try {
+                for (int numBytes; (numBytes = in.read(buffer)) >= 0; ) reply.write(buffer, 0, numBytes);
+            } catch (IOException e) {
+                // the receiver may reset the connection after rejecting it
+            }
+            return reply.toByteArray();
+        }
+    }
+
+    /**
+     * Create a file of random content in the outbox.
+     * @param name the name of the file
+     * @param size the size (in bytes) of the file
+     * @param seed the seed of the content
+     * @return the file
+     */
+    File createFile(String name, int size, long seed) throws IOException {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        File file = new File(outbox, name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    /**
+     * Wait for the next transfer the receiver starts.
+     * @return the transfer
+     */
+    Transfer nextTransfer() throws InterruptedException {
+        Transfer transfer = transfers.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull("No transfer started", transfer);
+        return transfer;
+    }
+
+    /**
+     * Wait for the next error the receiver reports.
+     * @return the error
+     */
+    Throwable nextError() throws InterruptedException {
+        Throwable error = errors.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull("No error reported", error);
+        return error;
+    }
+
+    /**
+     * Wait for a transfer to finish.
+     * @param transfer the transfer
+     * @return {@code null} if the transfer completed, or the cause it failed with
+     */
+    static Throwable await(Transfer transfer) throws InterruptedException {
+        try {
+            transfer.getCompletion().get(TIMEOUT, TimeUnit.MILLISECONDS);
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (TimeoutException e) {
+            fail("Transfer of " + transfer.getFile() + " did not finish");
+            return null;
+        }
+    }
+
+    Server getServer() {
+        return server;
+    }
+
+    File getInbox() {
+        return inbox;
+    }
+
+    File getOutbox() {
+        return outbox;
+    }
+
+    BlockingQueue<Throwable> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Stop the receiver, wait until the port is free again and delete the received files.
+     */
+    @Override
+    public void close() throws IOException, InterruptedException {
+        server.interrupt();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket ignored = new Socket(HOST, Server.DEFAULT_PORT)) {
+                Thread.sleep(20);
+            } catch (ConnectException e) {
+                break;
+            }
+        }
+        delete(root);
+    }
+
+    /**
+     * Delete a directory tree.
+     * @param root the root of the tree
+     */
+    static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
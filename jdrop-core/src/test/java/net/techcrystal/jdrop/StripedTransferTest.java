@@ -0,0 +1,133 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.file.Files;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static net.techcrystal.jdrop.Loopback.CODE;
+import static net.techcrystal.jdrop.Loopback.HOST;
+import static net.techcrystal.jdrop.Loopback.await;
+import static net.techcrystal.jdrop.Loopback.header;
+import static net.techcrystal.jdrop.Loopback.send;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for files sent in stripes over several connections with the {@code PART} header.
+ */
+public class StripedTransferTest {
+
+    @Test
+    public void roundTripBlocking() throws Exception {
+        roundTrip(ServerConfig.Engine.BLOCKING);
+    }
+
+    @Test
+    public void roundTripNio() throws Exception {
+        roundTrip(ServerConfig.Engine.NIO);
+    }
+
+    private void roundTrip(ServerConfig.Engine engine) throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig().setEngine(engine).setMaxConcurrency(8))) {
+            File file = loopback.createFile("striped.bin", 1024 * 1024 + 3, 1);
+            Server sender = loopback.sender(new ServerConfig().setStripes(4).setMinStripeSize(1000),
+                    new LinkedBlockingQueue<>());
+            Transfer sent = sender.submitFile(HOST, CODE, file);
+            Transfer received = loopback.nextTransfer();
+            assertNull(await(received));
+            assertNull(await(sent));
+            sender.interrupt();
+            assertArrayEquals(Files.readAllBytes(file.toPath()),
+                    Files.readAllBytes(new File(loopback.getInbox(), file.getName()).toPath()));
+        }
+    }
+
+    @Test
+    public void rejectsInvalidStripeCount() throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig())) {
+            send(header(CODE, "PART", "a", "a.bin", 10, 0, 0, 10), new byte[10]);
+            assertProtocolError(loopback, "Invalid stripe count 0");
+            send(header(CODE, "PART", "b", "b.bin", 10, ServerConfig.MAX_STRIPES + 1, 0, 10), new byte[10]);
+            assertProtocolError(loopback, "Invalid stripe count " + (ServerConfig.MAX_STRIPES + 1));
+        }
+    }
+
+    @Test
+    public void rejectsStripeOutsideFile() throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig())) {
+            send(header(CODE, "PART", "a", "a.bin", 10, 2, 8, 5), new byte[5]);
+            assertProtocolError(loopback, "exceeds file size");
+            send(header(CODE, "PART", "b", "b.bin", 10, 2, 11, 0));
+            assertProtocolError(loopback, "exceeds file size");
+        }
+    }
+
+    @Test
+    public void rejectsOverlappingStripe() throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig())) {
+            send(header(CODE, "PART", "a", "a.bin", 10, 2, 0, 6), new byte[6]);
+            send(header(CODE, "PART", "a", "a.bin", 10, 2, 4, 6), new byte[6]);
+            assertProtocolError(loopback, "overlaps another stripe");
+        }
+    }
+
+    @Test
+    public void rejectsMismatchedStripe() throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig())) {
+            send(header(CODE, "PART", "a", "a.bin", 10, 2, 0, 5), new byte[5]);
+            send(header(CODE, "PART", "a", "a.bin", 12, 2, 5, 7), new byte[7]);
+            assertProtocolError(loopback, "does not match");
+            send(header(CODE, "PART", "a", "a.bin", 10, 3, 5, 5), new byte[5]);
+            assertProtocolError(loopback, "does not match");
+        }
+    }
+
+    @Test
+    public void failsIdleTransferBlocking() throws Exception {
+        failsIdleTransfer(ServerConfig.Engine.BLOCKING);
+    }
+
+    @Test
+    public void failsIdleTransferNio() throws Exception {
+        failsIdleTransfer(ServerConfig.Engine.NIO);
+    }
+
+    private void failsIdleTransfer(ServerConfig.Engine engine) throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig().setEngine(engine).setStripeTimeout(300))) {
+            // the sender announces two stripes but only ever opens one
+            send(header(CODE, "PART", "a", "a.bin", 10, 2, 0, 5), new byte[5]);
+            Throwable cause = await(loopback.nextTransfer());
+            assertTrue(String.valueOf(cause), cause instanceof IOException);
+            assertTrue(cause.getMessage(), cause.getMessage().contains("no activity"));
+        }
+    }
+
+    private static void assertProtocolError(Loopback loopback, String message) throws InterruptedException {
+        Throwable error = loopback.nextError();
+        assertEquals(ProtocolException.class, error.getClass());
+        assertTrue(error.getMessage(), error.getMessage().contains(message));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+/**
+ * Tests for {@link Server#transfer(FileChannel, long, long, WritableByteChannel, Transfer)}, including the buffered
+ * copy it falls back to where {@link FileChannel#transferTo(long, long, WritableByteChannel)} does not work.
+ */
+public class TransferToTest {
+    private Path path;
+    private byte[] data;
+
+    @Before
+    public void createFile() throws IOException {
+        data = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(data);
+        path = Files.createTempFile("jdrop-test", ".bin");
+        Files.write(path, data);
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        Files.delete(path);
+    }
+
+    @Test
+    public void transfersRange() throws IOException {
+        assertRangeSent(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    @Test
+    public void copiesWhenTransferToFails() throws IOException {
+        assertRangeSent(new UnsupportedTransferTo(FileChannel.open(path, StandardOpenOption.READ), true));
+    }
+
+    @Test
+    public void copiesWhenTransferToMakesNoProgress() throws IOException {
+        assertRangeSent(new UnsupportedTransferTo(FileChannel.open(path, StandardOpenOption.READ), false));
+    }
+
+    @Test
+    public void stopsAtEndOfFile() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FileChannel in = new UnsupportedTransferTo(FileChannel.open(path, StandardOpenOption.READ), false)) {
+            assertEquals(100, Server.transfer(in, data.length - 100, 1000, Channels.newChannel(out)));
+        }
+        assertArrayEquals(Arrays.copyOfRange(data, data.length - 100, data.length), out.toByteArray());
+    }
+
+    @Test
+    public void failsOnClosedChannel() throws IOException {
+        WritableByteChannel out = Channels.newChannel(new ByteArrayOutputStream());
+        out.close();
+        try (FileChannel in = new UnsupportedTransferTo(FileChannel.open(path, StandardOpenOption.READ), true)) {
+            assertThrows(IOException.class, () -> Server.transfer(in, 0, data.length, out));
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            assertThrows(ClosedChannelException.class, () -> Server.transfer(in, 0, data.length, out));
+        }
+    }
+
+    private void assertRangeSent(FileChannel in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Transfer transfer = new Transfer(path.toFile(), data.length);
+        try {
+            assertEquals(data.length - 10, Server.transfer(in, 10, data.length - 10, Channels.newChannel(out),
+                    transfer));
+        } finally {
+            in.close();
+        }
+        assertArrayEquals(Arrays.copyOfRange(data, 10, data.length), out.toByteArray());
+        assertEquals(data.length - 10, transfer.getBytesTransferred());
+    }
+
+    /**
+     * A file channel whose {@code transferTo} either fails or transfers nothing, as on platforms without support for
+     * it.
+     */
+    private static class UnsupportedTransferTo extends FileChannel {
+        private final FileChannel file;
+        private final boolean fail;
+
+        UnsupportedTransferTo(FileChannel file, boolean fail) {
+            this.file = file;
+            this.fail = fail;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (fail) throw new IOException("Operation not supported");
+            return 0;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return file.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return file.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return file.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return file.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return file.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return file.write(src, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return file.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            file.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            file.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            file.force(metaData);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return file.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return file.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return file.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return file.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            file.close();
+        }
+    }
+}
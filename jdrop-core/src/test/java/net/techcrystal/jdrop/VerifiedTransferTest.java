@@ -0,0 +1,172 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.techcrystal.jdrop;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Checksum;
+
+import static net.techcrystal.jdrop.Loopback.CODE;
+import static net.techcrystal.jdrop.Loopback.HOST;
+import static net.techcrystal.jdrop.Loopback.await;
+import static net.techcrystal.jdrop.Loopback.header;
+import static net.techcrystal.jdrop.Loopback.negotiate;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for files sent in checksummed chunks with the "crc32c" option.
+ */
+public class VerifiedTransferTest {
+
+    @Test
+    public void roundTripBlocking() throws Exception {
+        roundTrip(ServerConfig.Engine.BLOCKING, null);
+    }
+
+    @Test
+    public void roundTripNio() throws Exception {
+        roundTrip(ServerConfig.Engine.NIO, null);
+    }
+
+    @Test
+    public void roundTripCompressed() throws Exception {
+        roundTrip(ServerConfig.Engine.BLOCKING, "deflate");
+    }
+
+    private void roundTrip(ServerConfig.Engine engine, String codec) throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig().setEngine(engine))) {
+            File file = loopback.createFile("verified.bin", 2 * ChunkFrames.CHUNK_SIZE + 5, 1);
+            Server sender = loopback.sender(new ServerConfig().setVerify(true).setCodec(codec),
+                    new LinkedBlockingQueue<>());
+            Transfer sent = sender.submitFile(HOST, CODE, file);
+            assertNull(await(loopback.nextTransfer()));
+            assertNull(await(sent));
+            sender.interrupt();
+            assertArrayEquals(Files.readAllBytes(file.toPath()),
+                    Files.readAllBytes(new File(loopback.getInbox(), file.getName()).toPath()));
+        }
+    }
+
+    @Test
+    public void repairsCorruptedChunk() throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig())) {
+            byte[] data = new byte[ChunkFrames.CHUNK_SIZE + 100];
+            new Random(1).nextBytes(data);
+            try (Socket socket = new Socket(HOST, Server.DEFAULT_PORT)) {
+                OutputStream out = socket.getOutputStream();
+                HeaderDecoder reply = negotiate(socket, TransferOptions.CRC32C, "x.bin", data.length);
+                out.write(frame(data, 0, ChunkFrames.CHUNK_SIZE, false));
+                out.write(frame(data, ChunkFrames.CHUNK_SIZE, 100, true));
+                assertReply(reply, 1, 1);
+                out.write(frame(data, ChunkFrames.CHUNK_SIZE, 100, false));
+                assertReply(reply, 0);
+            }
+            assertNull(await(loopback.nextTransfer()));
+            assertArrayEquals(data, Files.readAllBytes(new File(loopback.getInbox(), "x.bin").toPath()));
+        }
+    }
+
+    @Test
+    public void failsAfterRepairRounds() throws Exception {
+        try (Loopback loopback = new Loopback(new ServerConfig())) {
+            byte[] data = new byte[100];
+            try (Socket socket = new Socket(HOST, Server.DEFAULT_PORT)) {
+                OutputStream out = socket.getOutputStream();
+                HeaderDecoder reply = negotiate(socket, TransferOptions.CRC32C, "x.bin", data.length);
+                for (int round = 0; round < Server.REPAIR_ROUNDS; round++) {
+                    out.write(frame(data, 0, data.length, true));
+                    assertReply(reply, 1, 0);
+                }
+                out.write(frame(data, 0, data.length, true));
+                Throwable cause = await(loopback.nextTransfer());
+                assertTrue(String.valueOf(cause), cause.getMessage().contains("still corrupted"));
+            }
+        }
+    }
+
+    @Test
+    public void senderRejectsUnknownChunks() throws Exception {
+        assertSenderRejects("5\0", "corrupted chunks of 1");
+        assertSenderRejects("1\0" + "1\0", "unknown chunk 1");
+        assertSenderRejects("1\0x\0", "Invalid numeric header field");
+    }
+
+    private static void assertSenderRejects(String answer, String message) throws Exception {
+        try (ServerSocket listener = Loopback.listen()) {
+            File file = File.createTempFile("jdrop-test", ".bin");
+            try {
+                Files.write(file.toPath(), new byte[100]);
+                PrintStream out = new PrintStream(new ByteArrayOutputStream());
+                Server sender = new Server(new ServerConfig().setVerify(true).setResume(false).setMetricsInterval(0),
+                        new DirectoryTransferListener(file.getParentFile(), out), e -> { });
+                Transfer sent = sender.submitFile(HOST, CODE, file);
+                try (Socket socket = listener.accept()) {
+                    socket.setSoTimeout((int) Loopback.TIMEOUT);
+                    HeaderDecoder header = new HeaderDecoder(1024).reset(socket.getInputStream());
+                    for (int i = 0; i < 6; i++) header.next();
+                    OutputStream reply = socket.getOutputStream();
+                    reply.write(header(TransferOptions.CRC32C, 0));
+                    InputStream body = header.body();
+                    for (int i = 0; i < 104; i++) body.read();
+                    reply.write(answer.getBytes());
+                    Throwable cause = await(sent);
+                    assertEquals(ProtocolException.class, cause.getClass());
+                    assertTrue(cause.getMessage(), cause.getMessage().contains(message));
+                }
+                sender.interrupt();
+            } finally {
+                Files.delete(file.toPath());
+            }
+        }
+    }
+
+    private static void assertReply(HeaderDecoder reply, long... fields) throws IOException {
+        for (long field : fields) {
+            reply.next();
+            assertEquals(field, reply.fieldAsLong());
+        }
+    }
+
+    private static byte[] frame(byte[] data, int start, int length, boolean corrupt) {
+        Checksum checksum = Crc32c.create();
+        checksum.update(data, start, length);
+        int crc = (int) checksum.getValue() ^ (corrupt ? 1 : 0);
+        byte[] frame = Arrays.copyOfRange(data, start, start + length + 4);
+        frame[length] = (byte) (crc >>> 24);
+        frame[length + 1] = (byte) (crc >>> 16);
+        frame[length + 2] = (byte) (crc >>> 8);
+        frame[length + 3] = (byte) crc;
+        return frame;
+    }
+}
@@ -14,6 +14,8 @@
  * limitations under the License.
  */
 
+package net.techcrystal.jdrop.fx;
+
 import javafx.scene.Node;
 import javafx.scene.Parent;
 import javafx.scene.control.Alert;
@@ -14,6 +14,8 @@
  * limitations under the License.
  */
 
+package net.techcrystal.jdrop.fx;
+
 import javafx.application.Platform;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
@@ -22,6 +24,9 @@ import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.*;
 import javafx.stage.Stage;
+import net.techcrystal.jdrop.Server;
+import net.techcrystal.jdrop.ServerConfig;
+import net.techcrystal.jdrop.TransferRejectedException;
 import org.apache.commons.validator.routines.InetAddressValidator;
 import org.fxmisc.easybind.EasyBind;
 
@@ -29,6 +34,8 @@ import java.io.*;
 import java.net.Inet4Address;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -42,6 +49,8 @@ public class Controller implements Initializable {
     @FXML
     Button browseButton;
     @FXML
+    Button folderButton;
+    @FXML
     TextField recipientAddressText;
     @FXML
     TextField currentAddressText;
@@ -60,15 +69,17 @@ public class Controller implements Initializable {
     private static final int FILE = 1;
 
     private Stage primaryStage;
-    private ObjectProperty<File> file;
+    private ObjectProperty<List<File>> files;
     private Server server;
 
     @Override
     public void initialize(URL location, ResourceBundle resources) {
-        server = new Server(this::onServerError);
-        codeLabel.textProperty().bind(server.codeProperty());
-        file = new SimpleObjectProperty<>();
-        file.addListener(((observable, oldValue, newValue) -> {
+        FxTransferListener transferListener = new FxTransferListener();
+        codeLabel.textProperty().bind(transferListener.codeProperty());
+        server = new Server(new ServerConfig(), transferListener, this::onServerError);
+        server.start();
+        files = new SimpleObjectProperty<>();
+        files.addListener(((observable, oldValue, newValue) -> {
             if (newValue != null) msgTextArea.setText("");
         }));
 
@@ -92,12 +103,14 @@ public class Controller implements Initializable {
             }
         }));
 
-        fileText.textProperty().bind(EasyBind.map(file, f -> f != null ? f.getAbsolutePath() : ""));
+        fileText.textProperty().bind(EasyBind.map(files, f -> f == null ? ""
+                : f.size() == 1 ? f.get(0).getAbsolutePath() : f.size() + " files"));
         fileText.setEditable(false);
-        browseButton.textProperty().bind(EasyBind.map(file, f -> f == null ? "Browse..." : "  Clear  "));
+        browseButton.textProperty().bind(EasyBind.map(files, f -> f == null ? "Browse..." : "  Clear  "));
+        folderButton.disableProperty().bind(EasyBind.map(files, f -> f != null));
 
         msgTextArea.textProperty().addListener(((observable, oldValue, newValue) -> {
-            if (newValue.length() > 0) file.setValue(null);
+            if (newValue.length() > 0) files.setValue(null);
         }));
 
         codeText.textProperty().addListener(((observable, oldValue, newValue) -> {
@@ -118,14 +131,20 @@ public class Controller implements Initializable {
         e.printStackTrace(writer);
         LOG.log(Level.INFO, stackTrace.toString());
 
+        // sends run in the background, so their errors arrive on a sender thread
         if (e instanceof FileNotFoundException) {
-            new AlertBuilder(Alert.AlertType.ERROR)
+            Platform.runLater(() -> new AlertBuilder(Alert.AlertType.ERROR)
                     .setTitle("Send Error")
                     .setMessage("The file you selected cannot be found. Please select a new file.")
                     .setPositive(r -> Platform.runLater(() -> {
-                        this.file.setValue(null);
+                        this.files.setValue(null);
                         this.browseButton.requestFocus();
-                    })).showAndWait();
+                    })).showAndWait());
+        } else if (e instanceof TransferRejectedException) {
+            Platform.runLater(() -> new AlertBuilder(Alert.AlertType.INFORMATION)
+                    .setTitle("Send Rejected")
+                    .setMessage("The recipient declined the file.")
+                    .show());
         }
     }
 
@@ -152,8 +171,8 @@ public class Controller implements Initializable {
                 sendText();
                 break;
             case FILE:
-                LOG.log(Level.INFO, "Sending file: " + file.get().getAbsolutePath());
-                sendFile();
+                LOG.log(Level.INFO, "Sending files: " + files.get());
+                sendFiles();
                 break;
             default:
         }
@@ -181,7 +200,7 @@ public class Controller implements Initializable {
         }
         if (msgTextArea.getText().length() > 0) {
             return TEXT;
-        } else if (file.get() != null) {
+        } else if (files.get() != null) {
             return FILE;
         } else {
             sendError.setMessage("You must either select a file or write a message.").showAndWait();
@@ -193,14 +212,14 @@ public class Controller implements Initializable {
         String text = msgTextArea.getText();
         String host = recipientAddressText.getText();
         String code = codeText.getText();
-        server.sendText(host, code, text);
+        server.submitText(host, code, text);
     }
 
-    private void sendFile() {
-        File file = this.file.get();
+    private void sendFiles() {
+        List<File> files = this.files.get();
         String host = recipientAddressText.getText();
         String code = codeText.getText();
-        server.sendFile(host, code, file);
+        server.submitFiles(host, code, files);
     }
 
     @FXML
@@ -219,13 +238,22 @@ public class Controller implements Initializable {
 
     @FXML
     public void onBrowseButtonPressed(Event event) {
-        if (file.get() == null) {
-            file.setValue(new FileChooserBuilder()
+        if (files.get() == null) {
+            files.setValue(new FileChooserBuilder()
                     .setTitle("Open")
                     .setPath(new File(System.getProperty("user.home")))
-                    .showOpenDialog(primaryStage));
+                    .showOpenMultipleDialog(primaryStage));
         } else {
-            file.setValue(null);
+            files.setValue(null);
         }
     }
+
+    @FXML
+    public void onFolderButtonPressed(Event event) {
+        File folder = new FileChooserBuilder()
+                .setTitle("Open Folder")
+                .setPath(new File(System.getProperty("user.home")))
+                .showDirectoryDialog(primaryStage);
+        if (folder != null) files.setValue(Collections.singletonList(folder));
+    }
 }
@@ -14,6 +14,9 @@
  * limitations under the License.
  */
 
+package net.techcrystal.jdrop.fx;
+
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Window;
 
@@ -53,4 +56,10 @@ public class FileChooserBuilder {
     public List<File> showOpenMultipleDialog(Window ownerWindow) {
         return fc.showOpenMultipleDialog(ownerWindow);
     }
+    public File showDirectoryDialog(Window ownerWindow) {
+        DirectoryChooser dc = new DirectoryChooser();
+        dc.setTitle(fc.getTitle());
+        dc.setInitialDirectory(fc.getInitialDirectory());
+        return dc.showDialog(ownerWindow);
+    }
 }
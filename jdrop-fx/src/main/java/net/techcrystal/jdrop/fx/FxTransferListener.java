@@ -0,0 +1,179 @@
+/*
+ * Copyright [2017] [Morton Mo]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.techcrystal.jdrop.fx;
+
+import javafx.application.Platform;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+import javafx.geometry.Insets;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.GridPane;
+import net.techcrystal.jdrop.ProgressReporter;
+import net.techcrystal.jdrop.Server;
+import net.techcrystal.jdrop.Transfer;
+import net.techcrystal.jdrop.TransferListener;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The {@code FxTransferListener} class is the {@link TransferListener} of the JavaFX application. It asks the user
+ * whether to accept incoming files with dialogs, shows the progress of incoming transfers and exposes the verification
+ * code as a property that can be bound to a label.
+ */
+public class FxTransferListener implements TransferListener {
+    private final StringProperty code;
+
+    public FxTransferListener() {
+        code = new SimpleStringProperty();
+    }
+
+    /**
+     * Ask the user whether to accept an incoming file and where to save it.
+     * @param filename the name of the incoming file as announced by the sender
+     * @param size the size (in bytes) of the incoming file
+     * @return a future that completes with the file selected by the user, or {@code null} if the file was rejected
+     */
+    @Override
+    public CompletableFuture<File> chooseDestination(String filename, long size) {
+        CompletableFuture<File> destination = new CompletableFuture<>();
+        Platform.runLater(() -> {
+            try {
+                new AlertBuilder(Alert.AlertType.CONFIRMATION)
+                        .setTitle("Incoming")
+                        .setMessage(String.format("Incoming file: %s (%s). Do you want to accept?",
+                                filename, Server.humanReadableByteCount(size, false)))
+                        .setPositive(r -> destination.complete(new FileChooserBuilder()
+                                .setTitle("Save File")
+                                .setPath(new File(System.getProperty("user.home")))
+                                .setFilename(filename)
+                                .showSaveDialog(null)))
+                        .showAndWait();
+            } finally {
+                destination.complete(null);
+            }
+        });
+        return destination;
+    }
+
+    /**
+     * Display a progress bar dialog window to notify the progress, throughput and remaining time of an incoming
+     * transfer, followed by a completion dialog once it succeeded.
+     * @param transfer the transfer to monitor
+     */
+    @Override
+    public void transferStarted(Transfer transfer) {
+        File file = transfer.getFile();
+        showProgress(transfer, "Receiving file", "Saving file to " + file.getAbsolutePath(),
+                "File has been saved to " + file.getAbsolutePath() + ".");
+    }
+
+    /**
+     * Display a progress bar dialog window to notify the progress, throughput and remaining time of an outgoing
+     * transfer, followed by a completion dialog once it succeeded. Sends run in the background, so several of these
+     * dialogs may be open at once.
+     * @param transfer the transfer to monitor
+     */
+    @Override
+    public void sendStarted(Transfer transfer) {
+        File file = transfer.getFile();
+        showProgress(transfer, "Sending file", "Sending " + file.getName(), file.getName() + " has been sent.");
+    }
+
+    /**
+     * Helper method to display the progress dialog of a transfer, with a button to cancel it. The progress is sampled
+     * by a {@link ProgressReporter} at about the frame rate, and at most one update (showing the latest sample) is
+     * pending on the JavaFX application thread at any time.
+     * @param transfer the transfer to monitor
+     * @param title the title of the dialog
+     * @param header the header text of the dialog
+     * @param completion the message of the completion dialog
+     */
+    private void showProgress(Transfer transfer, String title, String header, String completion) {
+        Platform.runLater(() -> {
+            GridPane grid = new GridPane();
+            grid.setHgap(10);
+            grid.setVgap(10);
+            grid.setPadding(new Insets(10, 10, 10, 10));
+            grid.setMaxWidth(Double.MAX_VALUE);
+
+            ProgressBar progressBar = new ProgressBar(0);
+            progressBar.prefWidthProperty().bind(grid.widthProperty().subtract(20));
+            grid.add(progressBar, 0, 0);
+            Label status = new Label();
+            grid.add(status, 0, 1);
+
+            Alert progressAlert = new AlertBuilder(Alert.AlertType.INFORMATION)
+                    .setTitle(title)
+                    .setHeaderText(header)
+                    .addCustomPane(grid)
+                    .setPositive("Cancel", r -> {
+                        transfer.cancel();
+                    }).get();
+            progressAlert.show();
+
+            AtomicReference<ProgressReporter.Sample> pending = new AtomicReference<>();
+            new ProgressReporter(transfer, sample -> {
+                if (pending.getAndSet(sample) == null) {
+                    Platform.runLater(() -> {
+                        ProgressReporter.Sample latest = pending.getAndSet(null);
+                        progressBar.setProgress(latest.getProgress());
+                        status.setText(latest.toString());
+                    });
+                }
+            });
+            transfer.getCompletion().whenComplete((numBytes, e) -> Platform.runLater(() -> {
+                progressAlert.close();
+                if (e == null) {
+                    new AlertBuilder(Alert.AlertType.INFORMATION)
+                            .setTitle("Complete")
+                            .setMessage(String.format("%s\nTime: %6.3f seconds (%s/s)",
+                                    completion, transfer.getElapsedNanos() / 1e9,
+                                    Server.humanReadableByteCount((long) (numBytes * 1e9
+                                            / Math.max(transfer.getElapsedNanos(), 1)), false)))
+                            .showAndWait();
+                }
+            }));
+        });
+    }
+
+    /**
+     * Display the received text in an alert dialog.
+     * @param text text to be displayed
+     */
+    @Override
+    public void textReceived(String text) {
+        Platform.runLater(() -> {
+            new AlertBuilder(Alert.AlertType.INFORMATION)
+                    .setTitle("Incoming text")
+                    .addTextArea(text)
+                    .showAndWait();
+        });
+    }
+
+    @Override
+    public void codeChanged(String code) {
+        Platform.runLater(() -> this.code.setValue(code));
+    }
+
+    public StringProperty codeProperty() {
+        return code;
+    }
+}
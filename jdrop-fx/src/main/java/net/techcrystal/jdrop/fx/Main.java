@@ -14,6 +14,8 @@
  * limitations under the License.
  */
 
+package net.techcrystal.jdrop.fx;
+
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;